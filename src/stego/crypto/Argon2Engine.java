@@ -0,0 +1,423 @@
+package stego.crypto;
+
+import java.util.*;
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+/**
+ * Argon2d key derivation that keeps its block memory and digests between calls.
+ *
+ * Argon2BytesGenerator allocates its memory blocks again on every init(), and the secret is a part of its parameters,
+ * so a derivation per nonce candidate allocates a new generator and memory every time.
+ * An engine is created once for a parameter set and takes the password and secret on each call.
+ * The memory is zeroed after every derivation.
+ *
+ * An engine is not thread safe. forThread() gives each thread an engine of its own with the CipherTrail parameters,
+ * so independent derivations run side by side on separate threads, each in its own memory.
+ * The output is the same as that of Argon2BytesGenerator with the same parameters.
+ **/
+public class Argon2Engine
+{
+    private static final int BLOCK_SIZE_BYTES = 1024;
+    private static final int BLOCK_SIZE_LONGS = BLOCK_SIZE_BYTES / Long.BYTES;
+    private static final int SYNC_POINTS = 4;
+    private static final int PREHASH_DIGEST_LENGTH = 64;
+    private static final int PREHASH_SEED_LENGTH = PREHASH_DIGEST_LENGTH + 8;
+
+    private static final ThreadLocal<Argon2Engine> threadEngines
+	= ThreadLocal.withInitial(() -> new Argon2Engine(CipherTrail.getNewParameterBuilder().build()));
+
+    private final byte[] salt;
+    private final byte[] additional;
+    private final int iterations;
+    private final int memory;
+    private final int lanes;
+    private final int version;
+    private final int segmentLength;
+    private final int laneLength;
+    private final long[] blocks;
+    private final long[] blockR = new long[BLOCK_SIZE_LONGS];
+    private final long[] blockTmp = new long[BLOCK_SIZE_LONGS];
+    private final byte[] seed = new byte[PREHASH_SEED_LENGTH];
+    private final byte[] blockBytes = new byte[BLOCK_SIZE_BYTES];
+    private final byte[] digestBuffer = new byte[PREHASH_DIGEST_LENGTH];
+    private final byte[] intBuffer = new byte[Integer.BYTES];
+    private final Map<Integer, Blake2bDigest> digests = new HashMap<Integer, Blake2bDigest>();
+
+    /**
+     * Creates an engine and its memory for the parameters.
+     * The secret of the parameters is not used, the secret is given to each derivation instead.
+     *
+     * @param parameters Argon2d parameters
+     **/
+    public Argon2Engine(Argon2Parameters parameters)
+    {
+	if(Argon2Parameters.ARGON2_d != parameters.getType()) {
+	    throw new IllegalArgumentException("Argon2Engine supports only Argon2d, not type "+parameters.getType());
+	}
+	if((Argon2Parameters.ARGON2_VERSION_10 != parameters.getVersion()) && (Argon2Parameters.ARGON2_VERSION_13 != parameters.getVersion())) {
+	    throw new IllegalArgumentException("unknown Argon2 version "+parameters.getVersion());
+	}
+	this.salt = parameters.getSalt();
+	this.additional = (null == parameters.getAdditional()) ? new byte[0] : parameters.getAdditional();
+	this.iterations = parameters.getIterations();
+	this.memory = parameters.getMemory();
+	this.lanes = parameters.getLanes();
+	this.version = parameters.getVersion();
+	int memoryBlocks = Math.max(memory, 2 * SYNC_POINTS * lanes);
+	this.segmentLength = memoryBlocks / (lanes * SYNC_POINTS);
+	this.laneLength = segmentLength * SYNC_POINTS;
+	this.blocks = new long[segmentLength * lanes * SYNC_POINTS * BLOCK_SIZE_LONGS];
+    }
+
+    /**
+     * @return the engine of the current thread with the parameters of CipherTrail
+     **/
+    public static Argon2Engine forThread()
+    {
+	return threadEngines.get();
+    }
+
+    /**
+     * Derives out.length bytes from password and secret.
+     *
+     * @param password the password, which is not modified
+     * @param secret the secret or null for none, which is not modified
+     * @param out target of the derived bytes
+     **/
+    public void generateBytes(byte[] password, byte[] secret, byte[] out)
+    {
+	try {
+	    initialize(password, (null == secret) ? new byte[0] : secret, out.length);
+	    for(int pass = 0; pass < iterations; pass++) {
+		for(int slice = 0; slice < SYNC_POINTS; slice++) {
+		    for(int lane = 0; lane < lanes; lane++) {
+			fillSegment(pass, slice, lane);
+		    }
+		}
+	    }
+	    digest(out);
+	}
+	finally {
+	    Arrays.fill(blocks, 0l);
+	    Arrays.fill(blockR, 0l);
+	    Arrays.fill(blockTmp, 0l);
+	    Arrays.fill(seed, (byte)0);
+	    Arrays.fill(blockBytes, (byte)0);
+	    Arrays.fill(digestBuffer, (byte)0);
+	    for(Blake2bDigest digest : digests.values()) {
+		digest.reset();
+	    }
+	}
+    }
+
+    private Blake2bDigest getDigest(int lengthBytes)
+    {
+	Blake2bDigest digest = digests.get(lengthBytes);
+	if(null == digest) {
+	    digest = new Blake2bDigest(lengthBytes * 8);
+	    digests.put(lengthBytes, digest);
+	}
+	return digest;
+    }
+
+    private void updateInt(Blake2bDigest digest, int value)
+    {
+	intToLittleEndian(value, intBuffer, 0);
+	digest.update(intBuffer, 0, intBuffer.length);
+    }
+
+    private void updateWithLength(Blake2bDigest digest, byte[] value)
+    {
+	updateInt(digest, value.length);
+	digest.update(value, 0, value.length);
+    }
+
+    private void initialize(byte[] password, byte[] secret, int outputLength)
+    {
+	Blake2bDigest digest = getDigest(PREHASH_DIGEST_LENGTH);
+	updateInt(digest, lanes);
+	updateInt(digest, outputLength);
+	updateInt(digest, memory);
+	updateInt(digest, iterations);
+	updateInt(digest, version);
+	updateInt(digest, Argon2Parameters.ARGON2_d);
+	updateWithLength(digest, password);
+	updateWithLength(digest, salt);
+	updateWithLength(digest, secret);
+	updateWithLength(digest, additional);
+	digest.doFinal(seed, 0);
+
+	for(int lane = 0; lane < lanes; lane++) {
+	    intToLittleEndian(lane, seed, PREHASH_DIGEST_LENGTH + 4);
+	    for(int index = 0; index < 2; index++) {
+		intToLittleEndian(index, seed, PREHASH_DIGEST_LENGTH);
+		hash(seed, seed.length, blockBytes, BLOCK_SIZE_BYTES);
+		int blockOffset = (lane * laneLength + index) * BLOCK_SIZE_LONGS;
+		for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+		    blocks[blockOffset + i] = littleEndianToLong(blockBytes, i * Long.BYTES);
+		}
+	    }
+	}
+    }
+
+    private void fillSegment(int pass, int slice, int lane)
+    {
+	int startingIndex = ((0 == pass) && (0 == slice)) ? 2 : 0;
+	int currentOffset = lane * laneLength + slice * segmentLength + startingIndex;
+	boolean withXor = (0 != pass) && (Argon2Parameters.ARGON2_VERSION_10 != version);
+
+	for(int index = startingIndex; index < segmentLength; index++, currentOffset++) {
+	    // the block before the first block of a lane is the last block of the lane
+	    int prevOffset = (0 == currentOffset % laneLength) ? currentOffset + laneLength - 1 : currentOffset - 1;
+	    long pseudoRandom = blocks[prevOffset * BLOCK_SIZE_LONGS];
+	    int refLane = ((0 == pass) && (0 == slice)) ? lane : (int)((pseudoRandom >>> 32) % lanes);
+	    int refIndex = referenceIndex(pass, slice, index, pseudoRandom, refLane == lane);
+	    fillBlock(prevOffset, refLane * laneLength + refIndex, currentOffset, withXor);
+	}
+    }
+
+    private int referenceIndex(int pass, int slice, int index, long pseudoRandom, boolean sameLane)
+    {
+	int referenceAreaSize;
+	if(0 == pass) {
+	    if(sameLane) {
+		referenceAreaSize = slice * segmentLength + index - 1;
+	    } else {
+		referenceAreaSize = slice * segmentLength + ((0 == index) ? -1 : 0);
+	    }
+	} else {
+	    if(sameLane) {
+		referenceAreaSize = laneLength - segmentLength + index - 1;
+	    } else {
+		referenceAreaSize = laneLength - segmentLength + ((0 == index) ? -1 : 0);
+	    }
+	}
+	long relativePosition = pseudoRandom & 0xFFFFFFFFl;
+	relativePosition = (relativePosition * relativePosition) >>> 32;
+	relativePosition = referenceAreaSize - 1 - ((referenceAreaSize * relativePosition) >>> 32);
+	int startPosition = 0;
+	if((0 != pass) && (SYNC_POINTS - 1 != slice)) {
+	    startPosition = (slice + 1) * segmentLength;
+	}
+	return (int)((startPosition + relativePosition) % laneLength);
+    }
+
+    /**
+     * Computes the compression of blocks prev and ref into block current, taking xor with the old current if withXor.
+     **/
+    private void fillBlock(int prev, int ref, int current, boolean withXor)
+    {
+	int prevStart = prev * BLOCK_SIZE_LONGS;
+	int refStart = ref * BLOCK_SIZE_LONGS;
+	int currentStart = current * BLOCK_SIZE_LONGS;
+	for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+	    blockR[i] = blocks[prevStart + i] ^ blocks[refStart + i];
+	}
+	System.arraycopy(blockR, 0, blockTmp, 0, BLOCK_SIZE_LONGS);
+	if(withXor) {
+	    for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+		blockTmp[i] ^= blocks[currentStart + i];
+	    }
+	}
+	for(int row = 0; row < 8; row++) {
+	    int v = 16 * row;
+	    permute(blockR, v, v+1, v+2, v+3, v+4, v+5, v+6, v+7, v+8, v+9, v+10, v+11, v+12, v+13, v+14, v+15);
+	}
+	for(int column = 0; column < 8; column++) {
+	    int v = 2 * column;
+	    permute(blockR, v, v+1, v+16, v+17, v+32, v+33, v+48, v+49, v+64, v+65, v+80, v+81, v+96, v+97, v+112, v+113);
+	}
+	for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+	    blocks[currentStart + i] = blockTmp[i] ^ blockR[i];
+	}
+    }
+
+    /**
+     * The Blake2b round of Argon2 over 16 words of v, held in locals while it runs.
+     **/
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+				int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15)
+    {
+	long a0 = v[v0], a1 = v[v1], a2 = v[v2], a3 = v[v3];
+	long b0 = v[v4], b1 = v[v5], b2 = v[v6], b3 = v[v7];
+	long c0 = v[v8], c1 = v[v9], c2 = v[v10], c3 = v[v11];
+	long d0 = v[v12], d1 = v[v13], d2 = v[v14], d3 = v[v15];
+
+	// columns
+	a0 = multiplyAdd(a0, b0); d0 = Long.rotateRight(d0 ^ a0, 32); c0 = multiplyAdd(c0, d0); b0 = Long.rotateRight(b0 ^ c0, 24);
+	a0 = multiplyAdd(a0, b0); d0 = Long.rotateRight(d0 ^ a0, 16); c0 = multiplyAdd(c0, d0); b0 = Long.rotateRight(b0 ^ c0, 63);
+	a1 = multiplyAdd(a1, b1); d1 = Long.rotateRight(d1 ^ a1, 32); c1 = multiplyAdd(c1, d1); b1 = Long.rotateRight(b1 ^ c1, 24);
+	a1 = multiplyAdd(a1, b1); d1 = Long.rotateRight(d1 ^ a1, 16); c1 = multiplyAdd(c1, d1); b1 = Long.rotateRight(b1 ^ c1, 63);
+	a2 = multiplyAdd(a2, b2); d2 = Long.rotateRight(d2 ^ a2, 32); c2 = multiplyAdd(c2, d2); b2 = Long.rotateRight(b2 ^ c2, 24);
+	a2 = multiplyAdd(a2, b2); d2 = Long.rotateRight(d2 ^ a2, 16); c2 = multiplyAdd(c2, d2); b2 = Long.rotateRight(b2 ^ c2, 63);
+	a3 = multiplyAdd(a3, b3); d3 = Long.rotateRight(d3 ^ a3, 32); c3 = multiplyAdd(c3, d3); b3 = Long.rotateRight(b3 ^ c3, 24);
+	a3 = multiplyAdd(a3, b3); d3 = Long.rotateRight(d3 ^ a3, 16); c3 = multiplyAdd(c3, d3); b3 = Long.rotateRight(b3 ^ c3, 63);
+
+	// diagonals
+	a0 = multiplyAdd(a0, b1); d3 = Long.rotateRight(d3 ^ a0, 32); c2 = multiplyAdd(c2, d3); b1 = Long.rotateRight(b1 ^ c2, 24);
+	a0 = multiplyAdd(a0, b1); d3 = Long.rotateRight(d3 ^ a0, 16); c2 = multiplyAdd(c2, d3); b1 = Long.rotateRight(b1 ^ c2, 63);
+	a1 = multiplyAdd(a1, b2); d0 = Long.rotateRight(d0 ^ a1, 32); c3 = multiplyAdd(c3, d0); b2 = Long.rotateRight(b2 ^ c3, 24);
+	a1 = multiplyAdd(a1, b2); d0 = Long.rotateRight(d0 ^ a1, 16); c3 = multiplyAdd(c3, d0); b2 = Long.rotateRight(b2 ^ c3, 63);
+	a2 = multiplyAdd(a2, b3); d1 = Long.rotateRight(d1 ^ a2, 32); c0 = multiplyAdd(c0, d1); b3 = Long.rotateRight(b3 ^ c0, 24);
+	a2 = multiplyAdd(a2, b3); d1 = Long.rotateRight(d1 ^ a2, 16); c0 = multiplyAdd(c0, d1); b3 = Long.rotateRight(b3 ^ c0, 63);
+	a3 = multiplyAdd(a3, b0); d2 = Long.rotateRight(d2 ^ a3, 32); c1 = multiplyAdd(c1, d2); b0 = Long.rotateRight(b0 ^ c1, 24);
+	a3 = multiplyAdd(a3, b0); d2 = Long.rotateRight(d2 ^ a3, 16); c1 = multiplyAdd(c1, d2); b0 = Long.rotateRight(b0 ^ c1, 63);
+
+	v[v0] = a0; v[v1] = a1; v[v2] = a2; v[v3] = a3;
+	v[v4] = b0; v[v5] = b1; v[v6] = b2; v[v7] = b3;
+	v[v8] = c0; v[v9] = c1; v[v10] = c2; v[v11] = c3;
+	v[v12] = d0; v[v13] = d1; v[v14] = d2; v[v15] = d3;
+    }
+
+    private static long multiplyAdd(long x, long y)
+    {
+	return x + y + 2 * (x & 0xFFFFFFFFl) * (y & 0xFFFFFFFFl);
+    }
+
+    private void digest(byte[] out)
+    {
+	int lastStart = (laneLength - 1) * BLOCK_SIZE_LONGS;
+	System.arraycopy(blocks, lastStart, blockR, 0, BLOCK_SIZE_LONGS);
+	for(int lane = 1; lane < lanes; lane++) {
+	    int laneLastStart = (lane * laneLength + laneLength - 1) * BLOCK_SIZE_LONGS;
+	    for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+		blockR[i] ^= blocks[laneLastStart + i];
+	    }
+	}
+	for(int i = 0; i < BLOCK_SIZE_LONGS; i++) {
+	    longToLittleEndian(blockR[i], blockBytes, i * Long.BYTES);
+	}
+	hash(blockBytes, blockBytes.length, out, out.length);
+    }
+
+    /**
+     * The variable length hash H' of Argon2.
+     **/
+    private void hash(byte[] input, int inputLength, byte[] out, int outLength)
+    {
+	if(outLength <= PREHASH_DIGEST_LENGTH) {
+	    Blake2bDigest digest = getDigest(outLength);
+	    updateInt(digest, outLength);
+	    digest.update(input, 0, inputLength);
+	    digest.doFinal(out, 0);
+	    return;
+	}
+	Blake2bDigest digest = getDigest(PREHASH_DIGEST_LENGTH);
+	int halfLength = PREHASH_DIGEST_LENGTH / 2;
+	updateInt(digest, outLength);
+	digest.update(input, 0, inputLength);
+	digest.doFinal(digestBuffer, 0);
+	System.arraycopy(digestBuffer, 0, out, 0, halfLength);
+	int outPosition = halfLength;
+	int rounds = (outLength + halfLength - 1) / halfLength - 2;
+	for(int i = 1; i < rounds; i++) {
+	    digest.update(digestBuffer, 0, PREHASH_DIGEST_LENGTH);
+	    digest.doFinal(digestBuffer, 0);
+	    System.arraycopy(digestBuffer, 0, out, outPosition, halfLength);
+	    outPosition += halfLength;
+	}
+	Blake2bDigest lastDigest = getDigest(outLength - outPosition);
+	lastDigest.update(digestBuffer, 0, PREHASH_DIGEST_LENGTH);
+	lastDigest.doFinal(out, outPosition);
+    }
+
+    private static void intToLittleEndian(int value, byte[] target, int offset)
+    {
+	for(int i = 0; i < Integer.BYTES; i++) {
+	    target[offset + i] = (byte)(value >>> (8 * i));
+	}
+    }
+
+    private static void longToLittleEndian(long value, byte[] target, int offset)
+    {
+	for(int i = 0; i < Long.BYTES; i++) {
+	    target[offset + i] = (byte)(value >>> (8 * i));
+	}
+    }
+
+    private static long littleEndianToLong(byte[] source, int offset)
+    {
+	long result = 0l;
+	for(int i = Long.BYTES - 1; i >= 0; i--) {
+	    result = (result << 8) | (source[offset + i] & 0xFFl);
+	}
+	return result;
+    }
+
+    /**
+     * Testing methods
+     **/
+
+    /**
+     * Derives with an engine and with Argon2BytesGenerator for several passwords, secrets and output lengths.
+     * The same engine is used for every derivation, so leftovers of an earlier derivation would show as a mismatch.
+     *
+     * @param builder the parameters, without a secret
+     * @returns amount of derivations that differ from Argon2BytesGenerator
+     **/
+    private static int compareToGenerator(Argon2Parameters.Builder builder)
+    {
+	Random random = new Random(1l);
+	Argon2Engine engine = new Argon2Engine(builder.build());
+	int mismatches = 0;
+	for(int passwordLength : new int[] { 0, 1, 16, 100 }) {
+	    for(int secretLength : new int[] { -1, 0, 1, 3, 32 }) {
+		for(int outLength : new int[] { 4, 2*CipherTrail.KEY_AND_IV_SIZE_BYTES, 64, 65, 200 }) {
+		    byte[] password = new byte[passwordLength];
+		    random.nextBytes(password);
+		    byte[] secret = (secretLength < 0) ? null : new byte[secretLength];
+		    Argon2BytesGenerator generator = new Argon2BytesGenerator();
+		    if(null != secret) {
+			random.nextBytes(secret);
+			generator.init(builder.withSecret(secret).build());
+		    } else {
+			generator.init(builder.withSecret(new byte[0]).build());
+		    }
+		    byte[] expected = new byte[outLength];
+		    generator.generateBytes(password, expected);
+		    byte[] result = new byte[outLength];
+		    engine.generateBytes(password, secret, result);
+		    if(!Arrays.equals(expected, result)) {
+			System.out.println("password "+passwordLength+" bytes, secret "+secretLength+" bytes, output "+outLength
+					   +" bytes differs from Argon2BytesGenerator.");
+			mismatches++;
+		    }
+		}
+	    }
+	}
+	return mismatches;
+    }
+
+    /**
+     * main method for testing.
+     *
+     * compares the engine to Argon2BytesGenerator with the parameters of CipherTrail and with parameters of more lanes,
+     * memory and passes, the older version and additional data, and reports their success rate.
+     **/
+    public static void main(String[] args)
+    {
+	int successes = 0;
+	int trials = 0;
+
+	trials++;
+	if(0 == compareToGenerator(CipherTrail.getNewParameterBuilder())) {
+	    System.out.println("CipherTrail parameters match Argon2BytesGenerator.");
+	    successes++;
+	}
+
+	trials++;
+	if(0 == compareToGenerator(CipherTrail.getNewParameterBuilder()
+				   .withParallelism(4)
+				   .withMemoryPowOfTwo(8)
+				   .withIterations(3)
+				   .withVersion(Argon2Parameters.ARGON2_VERSION_10)
+				   .withAdditional(new byte[] { 1, 2, 3, 4, 5 }))) {
+	    System.out.println("other parameters match Argon2BytesGenerator.");
+	    successes++;
+	}
+
+	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
+    }
+}
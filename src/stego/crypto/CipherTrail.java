@@ -2,16 +2,19 @@ package stego.crypto;
 
 import java.util.*;
 import java.util.stream.*; 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.security.Security;
 import java.security.SecureRandom;
 import java.security.InvalidKeyException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 //import org.bouncycastle.jcajce.provider.BouncyCastleFipsProvider;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.crypto.*;
 import org.bouncycastle.crypto.params.*;
-import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
 import java.nio.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -35,9 +38,24 @@ public class CipherTrail
     public static final int IV_SIZE_BYTES = AES256_BLOCK_SIZE_BYTES - Long.BYTES; // 8
     public static final int KEY_AND_IV_SIZE_BYTES = KEY_SIZE_BYTES + IV_SIZE_BYTES;
     public static final PasswordConverter ARGON2_CONVERTER = PasswordConverter.UTF8;
+    /**
+     * Bulk masks are generated in calls of this size, which the JIT compiles to the intrinsic AES/CTR loop,
+     * while a single call over a large buffer is not.
+     **/
+    public static final int MASK_CHUNK_SIZE_BYTES = 16*1024;
+    /**
+     * Amount of hops findHopsParallel gives to one task, a multiple of Long.SIZE.
+     **/
+    public static final int PARALLEL_HOPS_PER_TASK = 2048;
+    /**
+     * Amount of mask bytes xorMaskParallel gives to one task, a multiple of the block size.
+     **/
+    public static final int PARALLEL_MASK_BYTES_PER_TASK = 128*1024;
 
     public static final String SALT = "CipherTrailSaltString"; // Nothing in my sleeve -constant.
     private static final byte[] SALT_BYTES = ARGON2_CONVERTER.convert(SALT.toCharArray());
+    private static final byte[] KEY_DERIVATION_TAG = { 1 };
+    private static final byte[] PASSWORD_DERIVATION_TAG = { 2 };
 
     public static final int PARALLELISM_LEVEL = 2;
     public static final int MEMORY_POW_TWO = 5;
@@ -59,6 +77,11 @@ public class CipherTrail
 
     private final Cipher addressCipher;
     private final Cipher contentCipher;
+    private final Cipher contentCounterCipher;
+    private final Cipher addressCounterCipher;
+    private final SecretKeySpec addressKey;
+    private final SecretKeySpec contentKey;
+    private final Queue<CipherTrail> idleForks = new ConcurrentLinkedQueue<CipherTrail>();
     private final byte[] addressBuffer = new byte[AES256_BLOCK_SIZE_BYTES];
     private final byte[] contentBuffer = new byte[AES256_BLOCK_SIZE_BYTES];
     private final LongBuffer addressLong = ByteBuffer.wrap(addressBuffer).position(IV_SIZE_BYTES).slice().asLongBuffer();
@@ -100,33 +123,109 @@ public class CipherTrail
     public byte[] getMask(long startByteAddress, int len)
     {
 	byte[] result = new byte[len];
-	int currentPosition = 0;
-	while(len>0) {
-	    long blockNumber = Math.floorDiv(startByteAddress, AES256_BLOCK_SIZE_BYTES);
-	    int offsetInBlock = Math.toIntExact(startByteAddress-blockNumber*AES256_BLOCK_SIZE_BYTES);
-	    int amount = Math.min(AES256_BLOCK_SIZE_BYTES - offsetInBlock, len);
-	    try(GuardedByteArray block = new GuardedByteArray(getBlockMask(blockNumber))) {
-		System.arraycopy(block.bytes,offsetInBlock ,result,currentPosition, amount);
+	getMask(startByteAddress, result, 0, len);
+	return result;
+    }
+
+    /**
+     * Writes the content mask of len bytes starting from startByteAddress into target.
+     *
+     * @param startByteAddress position of the first mask byte
+     * @param target array to write the mask into
+     * @param offset offset in target
+     * @param len amount of mask bytes
+     **/
+    public void getMask(long startByteAddress, byte[] target, int offset, int len)
+    {
+	Arrays.fill(target, offset, offset+len, (byte)0);
+	xorMask(startByteAddress, target, offset, len);
+    }
+
+    /**
+     * Takes xor of the content mask from startByteAddress onwards with the buffer in place, which both encrypts and decrypts.
+     *
+     * The mask of block n is the content key encryption of content IV followed by n, which is the same as
+     * AES/CTR keystream from that counter block until the lower 64 bits of the counter would carry into the IV.
+     * Ranges are generated with the counter mode cipher in as large pieces as possible and split only at such a carry,
+     * so the result is byte-identical to encrypting each counter block on its own.
+     *
+     * @param startByteAddress position of the first mask byte
+     * @param buffer data to take xor with the mask
+     * @param offset offset in buffer
+     * @param len amount of bytes
+     **/
+    public void xorMask(long startByteAddress, byte[] buffer, int offset, int len)
+    {
+	xorKeystream(contentCounterCipher, contentKey, contentBuffer, startByteAddress, buffer, offset, len);
+    }
+
+    private static void xorKeystream(Cipher counterCipher, SecretKeySpec key, byte[] ivSource,
+				     long startByteAddress, byte[] buffer, int offset, int len)
+    {
+	byte[] counterBlock = new byte[AES256_BLOCK_SIZE_BYTES];
+	System.arraycopy(ivSource, 0, counterBlock, 0, IV_SIZE_BYTES);
+	try {
+	    while(len>0) {
+		long blockNumber = Math.floorDiv(startByteAddress, AES256_BLOCK_SIZE_BYTES);
+		int offsetInBlock = Math.toIntExact(startByteAddress-blockNumber*AES256_BLOCK_SIZE_BYTES);
+		long blocksBeforeCarry = -blockNumber; // unsigned, 0 meaning 2^64
+		long amount = len;
+		if((0 != blocksBeforeCarry)
+		   && (Long.compareUnsigned(blocksBeforeCarry, (offsetInBlock + amount + AES256_BLOCK_SIZE_BYTES - 1) / AES256_BLOCK_SIZE_BYTES) < 0)) {
+		    amount = blocksBeforeCarry * AES256_BLOCK_SIZE_BYTES - offsetInBlock;
+		}
+		ByteBuffer.wrap(counterBlock).putLong(IV_SIZE_BYTES, blockNumber);
+		counterCipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBlock));
+		if(offsetInBlock > 0) {
+		    byte[] skipped = counterCipher.update(new byte[offsetInBlock]);
+		    Arrays.fill(skipped, (byte)0);
+		}
+		// counter mode does not buffer, so update() gives all of its output at once
+		for(int end = offset + Math.toIntExact(amount); offset < end; ) {
+		    int currentAmount = Math.min(MASK_CHUNK_SIZE_BYTES, end - offset);
+		    counterCipher.update(buffer, offset, currentAmount, buffer, offset);
+		    offset += currentAmount;
+		    startByteAddress += currentAmount;
+		    len -= currentAmount;
+		}
 	    }
-	    currentPosition += amount;
-	    startByteAddress += amount;
-	    len -= amount;
 	}
-	return result;
+	catch(InvalidKeyException ike) {
+	    throw new IllegalStateException(ike);
+	}
+	catch(InvalidAlgorithmParameterException iape) {
+	    throw new IllegalStateException(iape);
+	}
+	catch(ShortBufferException sbe) {
+	    throw new IllegalStateException(sbe);
+	}
+	finally {
+	    Arrays.fill(counterBlock, (byte)0);
+	}
     }
     public byte[] getBlockMask(long blockNumber)
     {
 	byte[] contentResultBuf = new byte[AES256_BLOCK_SIZE_BYTES];
+	getBlockMask(blockNumber, contentResultBuf, 0);
+	return contentResultBuf;
+    }
+
+    /**
+     * Writes the content mask of a single block into target.
+     *
+     * @param blockNumber number of the block
+     * @param target array to write the mask into
+     * @param offset offset in target, there must be AES256_BLOCK_SIZE_BYTES bytes room after it
+     **/
+    public void getBlockMask(long blockNumber, byte[] target, int offset)
+    {
 	try {
 	    contentLong.put(0,blockNumber);
-	    contentResultBuf = contentCipher.doFinal(contentBuffer);
-	    return contentResultBuf;
+	    contentCipher.doFinal(contentBuffer, 0, AES256_BLOCK_SIZE_BYTES, target, offset);
 	}
-	/*
 	catch(ShortBufferException sbe) {
 	    throw new IllegalStateException(sbe);
 	}
-	*/
 	catch(IllegalBlockSizeException ibse) {
 	    throw new IllegalStateException(ibse);
 	}
@@ -134,6 +233,156 @@ public class CipherTrail
 	    throw new IllegalStateException(bpe);
 	}
     }
+    /**
+     * Finds count consecutive hops starting from firstBitAddress without creating an object for each hop.
+     *
+     * The address of hop n is the nth long of the address keystream and its cipher bit is the nth bit of the content mask,
+     * so the hops are the same as those of findBlocksHops, but a whole range is generated with bulk keystream calls.
+     * Cipher bit of hop firstBitAddress+i is stored in bit (offset+i)%64 of cipherBits[(offset+i)/64].
+     * Other bits of cipherBits are left untouched, so threads may fill disjoint ranges of the same arrays
+     * as long as their offsets are multiples of Long.SIZE.
+     *
+     * @param firstBitAddress bit address of the first hop
+     * @param addresses target of the hop addresses
+     * @param cipherBits target of the hop cipher bits, packed Long.SIZE bits into each long
+     * @param offset index of the first hop in addresses and bit index of its cipher bit in cipherBits
+     * @param count amount of hops
+     **/
+    public void findHops(long firstBitAddress, long[] addresses, long[] cipherBits, int offset, int count)
+    {
+	if((firstBitAddress < 0) || (offset < 0) || (count < 0)
+	   || (count > addresses.length - offset) || ((((long)offset) + count + Long.SIZE - 1) / Long.SIZE > cipherBits.length)) {
+	    throw new IndexOutOfBoundsException("hops "+firstBitAddress+"+"+count+" at "+offset+" do not fit in "+addresses.length+" addresses and "+cipherBits.length+" cipher bit words.");
+	}
+	final int hopsPerChunk = MASK_CHUNK_SIZE_BYTES / Long.BYTES;
+	byte[] keystream = new byte[Math.min(count, hopsPerChunk) * Long.BYTES];
+	LongBuffer keystreamLongs = ByteBuffer.wrap(keystream).asLongBuffer();
+	try {
+	    for(int done = 0; done < count; ) {
+		int currentCount = Math.min(hopsPerChunk, count - done);
+		long currentFirst = firstBitAddress + done;
+
+		Arrays.fill(keystream, 0, currentCount * Long.BYTES, (byte)0);
+		xorKeystream(addressCounterCipher, addressKey, addressBuffer, currentFirst * Long.BYTES, keystream, 0, currentCount * Long.BYTES);
+		keystreamLongs.get(0, addresses, offset + done, currentCount);
+
+		long firstMaskByte = currentFirst / 8;
+		int bitOffset = (int)(currentFirst % 8);
+		int maskLength = (bitOffset + currentCount + 7) / 8;
+		getMask(firstMaskByte, keystream, 0, maskLength);
+		for(int i = 0; i < currentCount; i++) {
+		    int maskBit = bitOffset + i;
+		    int targetBit = offset + done + i;
+		    long targetMask = 1l << (targetBit % Long.SIZE);
+		    if(0 != (keystream[maskBit / 8] & (1 << (maskBit % 8)))) {
+			cipherBits[targetBit / Long.SIZE] |= targetMask;
+		    } else {
+			cipherBits[targetBit / Long.SIZE] &= ~targetMask;
+		    }
+		}
+		done += currentCount;
+	    }
+	}
+	finally {
+	    Arrays.fill(keystream, (byte)0);
+	}
+    }
+
+    /**
+     * Reads the cipher bit of a hop found with findHops.
+     *
+     * @param cipherBits packed cipher bits
+     * @param index bit index in cipherBits
+     * @return state of the cipher bit
+     **/
+    public static boolean getCipherBit(long[] cipherBits, int index)
+    {
+	return 0 != (cipherBits[index / Long.SIZE] & (1l << (index % Long.SIZE)));
+    }
+
+    /**
+     * Finds hops like findHops, but splits ranges longer than PARALLEL_HOPS_PER_TASK into tasks run in parallel,
+     * each with a fork of this trail. Forks are kept for reuse between calls.
+     * The offset must be a multiple of Long.SIZE for the tasks to write disjoint words of cipherBits,
+     * otherwise the range is found serially.
+     *
+     * @param firstBitAddress bit address of the first hop
+     * @param addresses target of the hop addresses
+     * @param cipherBits target of the hop cipher bits, packed Long.SIZE bits into each long
+     * @param offset index of the first hop in addresses and bit index of its cipher bit in cipherBits
+     * @param count amount of hops
+     **/
+    public void findHopsParallel(long firstBitAddress, long[] addresses, long[] cipherBits, int offset, int count)
+    {
+	if((count <= PARALLEL_HOPS_PER_TASK) || (0 != offset % Long.SIZE)) {
+	    CipherTrail fork = borrowFork();
+	    try {
+		fork.findHops(firstBitAddress, addresses, cipherBits, offset, count);
+	    }
+	    finally {
+		idleForks.offer(fork);
+	    }
+	    return;
+	}
+	IntStream.range(0, (count + PARALLEL_HOPS_PER_TASK - 1) / PARALLEL_HOPS_PER_TASK)
+	    .parallel()
+	    .forEach(task -> {
+		    int taskStart = task * PARALLEL_HOPS_PER_TASK;
+		    CipherTrail fork = borrowFork();
+		    try {
+			fork.findHops(firstBitAddress + taskStart, addresses, cipherBits, offset + taskStart,
+				      Math.min(PARALLEL_HOPS_PER_TASK, count - taskStart));
+		    }
+		    finally {
+			idleForks.offer(fork);
+		    }
+		});
+    }
+
+    /**
+     * Takes xor of the content mask like xorMask, but splits buffers longer than PARALLEL_MASK_BYTES_PER_TASK
+     * into tasks run in parallel in pool, each with a fork of this trail. Counter mode blocks do not depend
+     * on each other, so the result is the same as with xorMask. Forks are kept for reuse between calls,
+     * and this trail itself is not used, so a stream owning this trail can call this from any single thread.
+     *
+     * @param startByteAddress position of the first mask byte
+     * @param buffer data to take xor with the mask
+     * @param offset offset in buffer
+     * @param len amount of bytes
+     * @param pool pool running the tasks
+     **/
+    public void xorMaskParallel(long startByteAddress, byte[] buffer, int offset, int len, ForkJoinPool pool)
+    {
+	if(len <= PARALLEL_MASK_BYTES_PER_TASK) {
+	    xorMaskWithFork(startByteAddress, buffer, offset, len);
+	    return;
+	}
+	List<ForkJoinTask<?>> tasks = new ArrayList<>();
+	for(int taskStart = 0; taskStart < len; taskStart += PARALLEL_MASK_BYTES_PER_TASK) {
+	    int start = taskStart;
+	    int taskLen = Math.min(PARALLEL_MASK_BYTES_PER_TASK, len - taskStart);
+	    tasks.add(ForkJoinTask.adapt(() -> xorMaskWithFork(startByteAddress + start, buffer, offset + start, taskLen)));
+	}
+	pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    private void xorMaskWithFork(long startByteAddress, byte[] buffer, int offset, int len)
+    {
+	CipherTrail fork = borrowFork();
+	try {
+	    fork.xorMask(startByteAddress, buffer, offset, len);
+	}
+	finally {
+	    idleForks.offer(fork);
+	}
+    }
+
+    private CipherTrail borrowFork()
+    {
+	CipherTrail fork = idleForks.poll();
+	return (null != fork) ? fork : fork();
+    }
+
     public List<CipherHop> findBlocksHops(long firstBitAddress)
     {
 	/*
@@ -211,45 +460,200 @@ public class CipherTrail
 	//String message = "nonce:"+Arrays.toString(nonce);
 	//System.err.println(message);
 	//for(int i = message.length(); i>0;i--) System.err.print("\b");
-	Argon2BytesGenerator keyGenerator = new Argon2BytesGenerator();
-	keyGenerator.init(getNewParameterBuilder().withSecret(nonce).build());
-	if(cleanNonceAfterUse) {
-	    Arrays.fill(nonce, (byte)0);
-	}
-	
 	byte[] keyIvMaterial = new byte[2*KEY_AND_IV_SIZE_BYTES];
-	try(GuardedByteArray appended = filesalt.append(ARGON2_CONVERTER.convert(password), true)) {
-	    keyGenerator.generateBytes(password, keyIvMaterial);
+	// filesalt is not a part of the password derivation, existing bitfiles depend on that
+	byte[] passwordBytes = ARGON2_CONVERTER.convert(password);
+	try {
+	    Argon2Engine.forThread().generateBytes(passwordBytes, nonce, keyIvMaterial);
+	}
+	finally {
+	    Arrays.fill(passwordBytes, (byte)0);
+	    if(cleanNonceAfterUse) {
+		Arrays.fill(nonce, (byte)0);
+	    }
 	}
 	return keyIvMaterial;
     }
+    private static final ThreadLocal<Cipher> threadBlockCipher = ThreadLocal.withInitial(() -> {
+	    try {
+		return Cipher.getInstance("AES_256/ECB/NoPadding");
+	    }
+	    catch(NoSuchAlgorithmException nsae) {
+		throw new IllegalStateException(nsae);
+	    }
+	    catch(NoSuchPaddingException nspe) {
+		throw new IllegalStateException(nspe);
+	    }
+	});
+
+    /**
+     * Writes the content mask of one block of the password trail into target without creating the trail.
+     *
+     * This is the same as new CipherTrail(filesalt, password, nonce).getBlockMask(blockNumber, target, offset),
+     * but it skips the ciphers and buffers of a whole trail, which is what a search checking one block of each candidate needs.
+     *
+     * @param filesalt salt of the file
+     * @param password the password, which is not modified
+     * @param nonce the nonce, which is not modified
+     * @param blockNumber number of the block
+     * @param target array to write the mask into
+     * @param offset offset in target, there must be AES256_BLOCK_SIZE_BYTES bytes room after it
+     **/
+    public static void getPasswordBlockMask(FileSalt filesalt, char[] password, byte[] nonce, long blockNumber, byte[] target, int offset)
+    {
+	try(GuardedByteArray material = derivePasswordMaterial(password, nonce)) {
+	    getPasswordBlockMask(material, blockNumber, target, offset);
+	}
+    }
+
+    /**
+     * Writes the content mask of one block of the trail of material into target without creating the trail.
+     *
+     * @param material key and IV material given by derivePasswordMaterial, which is not modified
+     * @param blockNumber number of the block
+     * @param target array to write the mask into
+     * @param offset offset in target, there must be AES256_BLOCK_SIZE_BYTES bytes room after it
+     **/
+    public static void getPasswordBlockMask(GuardedByteArray material, long blockNumber, byte[] target, int offset)
+    {
+	byte[] keyIvMaterial = material.bytes;
+	byte[] counterBlock = new byte[AES256_BLOCK_SIZE_BYTES];
+	try {
+	    System.arraycopy(keyIvMaterial, KEY_AND_IV_SIZE_BYTES+KEY_SIZE_BYTES, counterBlock, 0, IV_SIZE_BYTES);
+	    ByteBuffer.wrap(counterBlock).putLong(IV_SIZE_BYTES, blockNumber);
+	    Cipher blockCipher = threadBlockCipher.get();
+	    blockCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyIvMaterial, KEY_AND_IV_SIZE_BYTES, KEY_SIZE_BYTES, "AES"));
+	    blockCipher.doFinal(counterBlock, 0, AES256_BLOCK_SIZE_BYTES, target, offset);
+	}
+	catch(InvalidKeyException ike) {
+	    throw new IllegalStateException(ike);
+	}
+	catch(ShortBufferException sbe) {
+	    throw new IllegalStateException(sbe);
+	}
+	catch(IllegalBlockSizeException ibse) {
+	    throw new IllegalStateException(ibse);
+	}
+	catch(BadPaddingException bpe) {
+	    throw new IllegalStateException(bpe);
+	}
+	finally {
+	    Arrays.fill(counterBlock, (byte)0);
+	}
+    }
+
+    /**
+     * Derives the key and IV material of a password and nonce once, for the trails of several files.
+     * The file salt is not a part of the password derivation, so the material gives the password trail
+     * of the same password and nonce in every file, and a search trying one candidate in many files
+     * runs Argon2 once per candidate instead of once per file.
+     *
+     * @param password the password, which is not modified
+     * @param nonce the nonce, which is not modified
+     * @return the derived material, which the caller owns and should close
+     **/
+    public static GuardedByteArray derivePasswordMaterial(char[] password, byte[] nonce)
+    {
+	return new GuardedByteArray(createKeyIvMaterial(null, password, nonce, false));
+    }
+
+    /**
+     * Creates the trail of material, which is the same as new CipherTrail(filesalt, password, nonce)
+     * for the password and nonce the material was derived from.
+     *
+     * @param material key and IV material given by derivePasswordMaterial, which is not modified
+     * @return the trail of material
+     **/
+    public static CipherTrail fromPasswordMaterial(GuardedByteArray material)
+    {
+	return new CipherTrail(true, material.bytes.clone());
+    }
     public CipherTrail(FileSalt filesalt, GuardedByteArray key)
     {
 	this(filesalt, key.bytes);
     }
+    /**
+     * Creates the trail of key at the file of filesalt.
+     * The derived material is taken from the default KeyMaterialCache when the same salt and key have been used before.
+     *
+     * @param filesalt salt of the file
+     * @param key the key of the trail
+     **/
     public CipherTrail(FileSalt filesalt, byte[] key)
     {
-	this(true,createKeyIvMaterial(filesalt, key));
+	this(true, KeyMaterialCache.getDefault().get(() -> createKeyIvMaterial(filesalt, key),
+						     KEY_DERIVATION_TAG, filesalt.bytes, key));
+    }
+
+    /**
+     * Creates the trail of a password and nonce like CipherTrail(filesalt, password, nonce),
+     * but takes the derived material from the default KeyMaterialCache when it has been derived before.
+     * Meant for known nonces used repeatedly, not for nonce candidates of a search.
+     *
+     * @param filesalt salt of the file
+     * @param password the password, which is not modified
+     * @param nonce the nonce, which is not modified
+     * @return the trail of password and nonce
+     **/
+    public static CipherTrail cached(FileSalt filesalt, char[] password, byte[] nonce)
+    {
+	byte[] passwordBytes = ARGON2_CONVERTER.convert(password);
+	try {
+	    return new CipherTrail(true, KeyMaterialCache.getDefault().get(() -> createKeyIvMaterial(filesalt, password, nonce, false),
+									      PASSWORD_DERIVATION_TAG, filesalt.bytes, nonce, passwordBytes));
+	}
+	finally {
+	    Arrays.fill(passwordBytes, (byte)0);
+	}
+    }
+    /**
+     * Creates a trail of random keys and IVs, for masking temporary data that only this trail reads back.
+     *
+     * @param random source of the keys and IVs
+     * @return the new trail
+     **/
+    public static CipherTrail random(SecureRandom random)
+    {
+	byte[] keyIvMaterial = new byte[2*KEY_AND_IV_SIZE_BYTES];
+	random.nextBytes(keyIvMaterial);
+	return new CipherTrail(true, keyIvMaterial);
     }
     private static byte[] createKeyIvMaterial(FileSalt filesalt, byte[] key)
     {
-	Argon2BytesGenerator keyGenerator = new Argon2BytesGenerator();
-	keyGenerator.init(getNewParameterBuilder().build());
-	
 	byte[] keyIvMaterial = new byte[2*KEY_AND_IV_SIZE_BYTES];
 	try(GuardedByteArray appended = filesalt.append(key, false)) {
-	    keyGenerator.generateBytes(appended.bytes, keyIvMaterial);
+	    Argon2Engine.forThread().generateBytes(appended.bytes, null, keyIvMaterial);
 	}
 	return keyIvMaterial;
     }
 
     private CipherTrail(boolean internal, byte[] keyIvMaterial)
+    {
+	this(new SecretKeySpec(keyIvMaterial, 0, KEY_SIZE_BYTES, "AES"),
+	     Arrays.copyOfRange(keyIvMaterial, KEY_SIZE_BYTES, KEY_AND_IV_SIZE_BYTES),
+	     new SecretKeySpec(keyIvMaterial, KEY_AND_IV_SIZE_BYTES, KEY_SIZE_BYTES, "AES"),
+	     Arrays.copyOfRange(keyIvMaterial, KEY_AND_IV_SIZE_BYTES+KEY_SIZE_BYTES, 2*KEY_AND_IV_SIZE_BYTES));
+	Arrays.fill(keyIvMaterial, (byte)0);
+    }
+
+    /**
+     * Creates a trail of the same keys and IVs with cipher state of its own.
+     **/
+    private CipherTrail(CipherTrail source)
+    {
+	this(source.addressKey, Arrays.copyOf(source.addressBuffer, IV_SIZE_BYTES),
+	     source.contentKey, Arrays.copyOf(source.contentBuffer, IV_SIZE_BYTES));
+    }
+
+    private CipherTrail(SecretKeySpec addressKey, byte[] addressIv, SecretKeySpec contentKey, byte[] contentIv)
     {
 	try {
-	    SecretKeySpec addressKey = new SecretKeySpec(keyIvMaterial, 0, KEY_SIZE_BYTES, "AES");
-	    System.arraycopy(keyIvMaterial, KEY_SIZE_BYTES, addressBuffer, 0, IV_SIZE_BYTES);
-	    SecretKeySpec contentKey = new SecretKeySpec(keyIvMaterial, KEY_SIZE_BYTES + IV_SIZE_BYTES, KEY_SIZE_BYTES, "AES");
-	    System.arraycopy(keyIvMaterial, KEY_SIZE_BYTES+IV_SIZE_BYTES+KEY_SIZE_BYTES, contentBuffer, 0, IV_SIZE_BYTES);
+	    this.addressKey = addressKey;
+	    System.arraycopy(addressIv, 0, addressBuffer, 0, IV_SIZE_BYTES);
+	    Arrays.fill(addressIv, (byte)0);
+	    this.contentKey = contentKey;
+	    System.arraycopy(contentIv, 0, contentBuffer, 0, IV_SIZE_BYTES);
+	    Arrays.fill(contentIv, (byte)0);
 
 	    //	addressCipher = Cipher.getInstance("AES/CTR/NoPadding", "BCFIPS");
 	    addressCipher = Cipher.getInstance("AES_256/ECB/NoPadding");
@@ -258,6 +662,9 @@ public class CipherTrail
 	    //contentCipher = Cipher.getInstance("AES/CTR/NoPadding", "BCFIPS");
 	    contentCipher = Cipher.getInstance("AES_256/ECB/NoPadding");
 	    contentCipher.init(Cipher.ENCRYPT_MODE, contentKey);
+
+	    contentCounterCipher = Cipher.getInstance("AES/CTR/NoPadding");
+	    addressCounterCipher = Cipher.getInstance("AES/CTR/NoPadding");
 	}
 	catch(InvalidKeyException ike) {
 	    throw new IllegalStateException(ike);
@@ -272,4 +679,17 @@ public class CipherTrail
 	//    throw new IllegalStateException(nspre);
 	//}
     }
+
+    /**
+     * Creates a trail that gives the same hops and masks as this one but has its own cipher state.
+     *
+     * A CipherTrail is not thread safe, so each thread uses a fork of its own.
+     * Forking shares the derived keys and IVs, so it does not run the key derivation again.
+     *
+     * @return new CipherTrail sharing the key material of this one
+     **/
+    public CipherTrail fork()
+    {
+	return new CipherTrail(this);
+    }
 }
@@ -0,0 +1,148 @@
+package stego.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bounded cache of key and IV material derived with Argon2, so that CipherTrails of the same salt and key
+ * are created without running the derivation again for every slice and stream.
+ *
+ * Entries are looked up by HMAC-SHA256 of the derivation inputs under a key that is random for every cache,
+ * so neither the keys nor a plain hash of them are held in the map.
+ * Material is handed out as copies, and the cached copies are zeroed when evicted, cleared or closed.
+ **/
+public class KeyMaterialCache
+    implements AutoCloseable
+{
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final String LOOKUP_ALGORITHM = "HmacSHA256";
+    private static final KeyMaterialCache DEFAULT = new KeyMaterialCache(DEFAULT_CAPACITY);
+
+    private final LinkedHashMap<ByteBuffer, GuardedByteArray> entries;
+    private final SecretKeySpec lookupKey;
+    private final int capacity;
+    private long hits = 0l;
+    private long misses = 0l;
+    private boolean isClosed = false;
+
+    /**
+     * Creates a cache holding at most capacity derivations.
+     *
+     * @param capacity maximum amount of entries, least recently used entry is evicted first
+     **/
+    public KeyMaterialCache(int capacity)
+    {
+	if(capacity < 1) {
+	    throw new IllegalArgumentException("capacity "+capacity+" must be positive.");
+	}
+	this.capacity = capacity;
+	byte[] lookupKeyBytes = new byte[32];
+	new SecureRandom().nextBytes(lookupKeyBytes);
+	this.lookupKey = new SecretKeySpec(lookupKeyBytes, LOOKUP_ALGORITHM);
+	Arrays.fill(lookupKeyBytes, (byte)0);
+	this.entries = new LinkedHashMap<ByteBuffer, GuardedByteArray>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, GuardedByteArray> eldest)
+		{
+		    if(size() > KeyMaterialCache.this.capacity) {
+			eldest.getValue().close();
+			return true;
+		    }
+		    return false;
+		}
+	    };
+    }
+
+    /**
+     * @return the cache shared by CipherTrails of the process
+     **/
+    public static KeyMaterialCache getDefault()
+    {
+	return DEFAULT;
+    }
+
+    /**
+     * Gives a copy of the material derived from parts, deriving and caching it if it is not cached.
+     * The derivation runs outside the lock, so two threads may derive the same material at the same time.
+     *
+     * @param deriver derivation of the material, called on a cache miss
+     * @param parts inputs that together determine the material, they are not modified
+     * @return copy of the derived material, which the caller owns and should zero
+     **/
+    public byte[] get(Supplier<byte[]> deriver, byte[]... parts)
+    {
+	ByteBuffer lookup = lookupOf(parts);
+	synchronized(this) {
+	    GuardedByteArray cached = isClosed ? null : entries.get(lookup);
+	    if(null != cached) {
+		hits++;
+		return cached.bytes.clone();
+	    }
+	    misses++;
+	}
+	byte[] material = deriver.get();
+	synchronized(this) {
+	    if(!isClosed && !entries.containsKey(lookup)) {
+		entries.put(lookup, new GuardedByteArray(material.clone()));
+	    }
+	}
+	return material;
+    }
+
+    private ByteBuffer lookupOf(byte[]... parts)
+    {
+	try {
+	    Mac mac = Mac.getInstance(LOOKUP_ALGORITHM);
+	    mac.init(lookupKey);
+	    byte[] length = new byte[Integer.BYTES];
+	    for(byte[] part : parts) {
+		// lengths keep the boundaries of the parts unambiguous
+		ByteBuffer.wrap(length).putInt(0, part.length);
+		mac.update(length);
+		mac.update(part);
+	    }
+	    return ByteBuffer.wrap(mac.doFinal());
+	}
+	catch(NoSuchAlgorithmException nsae) {
+	    throw new IllegalStateException(nsae);
+	}
+	catch(InvalidKeyException ike) {
+	    throw new IllegalStateException(ike);
+	}
+    }
+
+    public synchronized long getHitCount()
+    {
+	return hits;
+    }
+
+    public synchronized long getMissCount()
+    {
+	return misses;
+    }
+
+    /**
+     * Zeroes and drops all cached material. The cache stays usable.
+     **/
+    public synchronized void clear()
+    {
+	for(GuardedByteArray material : entries.values()) {
+	    material.close();
+	}
+	entries.clear();
+    }
+
+    /**
+     * Zeroes and drops all cached material. After closing, material is derived on every call and not cached.
+     **/
+    public synchronized void close()
+    {
+	isClosed = true;
+	clear();
+    }
+}
@@ -0,0 +1,299 @@
+package stego.crypto;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Searches the space of nonces of one size in parallel.
+ *
+ * Candidates are the start point plus k for k from 0 to 256^size-1, added as little endian numbers like Nonce.incrementAndCheck,
+ * so every nonce of the size is tried once and the search may start from a random point.
+ * Workers claim chunks of consecutive k from a shared counter, so that fast and slow workers share the space
+ * without a fixed split. When a worker finds a hit, all workers stop at their next candidate.
+ * Tried candidates are recorded in a SearchProgress, from which a stopped search can be resumed.
+ * Progress is reported by the thread waiting for the workers, not by the workers for each candidate.
+ **/
+public class NonceSearch
+    implements AutoCloseable
+{
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+    /**
+     * Interval of calls to the reporter while a search goes on.
+     **/
+    public static final long REPORT_MILLIS = 1000l;
+
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final int chunkSize;
+    private final AtomicLong attempts = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile Runnable reporter = null;
+
+    /**
+     * Creates a search with a worker for each available processor.
+     **/
+    public NonceSearch()
+    {
+	this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a search with workerCount worker threads.
+     *
+     * @param workerCount amount of worker threads
+     **/
+    public NonceSearch(int workerCount)
+    {
+	this(workerCount, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a search with workerCount worker threads claiming chunkSize candidates at a time.
+     *
+     * @param workerCount amount of worker threads
+     * @param chunkSize amount of consecutive candidates a worker claims at once
+     **/
+    public NonceSearch(int workerCount, int chunkSize)
+    {
+	if(workerCount < 1 || chunkSize < 1) {
+	    throw new IllegalArgumentException("worker count "+workerCount+" and chunk size "+chunkSize+" must be positive.");
+	}
+	this.workerCount = workerCount;
+	this.chunkSize = chunkSize;
+	this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+		Thread thread = new Thread(runnable, "NonceSearch");
+		thread.setDaemon(true);
+		return thread;
+	    });
+    }
+
+    public int getWorkerCount()
+    {
+	return workerCount;
+    }
+
+    /**
+     * @return amount of candidates tried by this search since it was created
+     **/
+    public long getAttemptCount()
+    {
+	return attempts.get();
+    }
+
+    /**
+     * Sets the reporter of progress, which is called every REPORT_MILLIS by the thread waiting for a search to end,
+     * so it may read getAttemptCount() without slowing the workers down.
+     *
+     * @param reporter the reporter or null for none
+     **/
+    public void setReporter(Runnable reporter)
+    {
+	this.reporter = reporter;
+    }
+
+    /**
+     * @return candidates tried per second since this search was created
+     **/
+    public double getAttemptsPerSecond()
+    {
+	long elapsed = Math.max(1l, System.nanoTime() - startNanos);
+	return attempts.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Gives the amount of nonces of size bytes, or Long.MAX_VALUE if there are more of them than that.
+     *
+     * @param nonceBytes size of the nonces
+     * @return amount of different nonces
+     **/
+    public static long spaceSize(int nonceBytes)
+    {
+	if(nonceBytes * 8 >= Long.SIZE - 1) {
+	    return Long.MAX_VALUE;
+	}
+	return 1l << (nonceBytes * 8);
+    }
+
+    /**
+     * Writes start plus amount as little endian numbers into target, wrapping around at the size of start.
+     *
+     * @param target array of the size of start
+     * @param start the start point
+     * @param amount amount to add
+     **/
+    public static void addLittleEndian(byte[] target, byte[] start, long amount)
+    {
+	int carry = 0;
+	for(int i = 0; i < start.length; i++) {
+	    int sum = Byte.toUnsignedInt(start[i]) + (int)(amount & 0xFF) + carry;
+	    target[i] = (byte)sum;
+	    carry = sum >>> 8;
+	    amount >>>= 8;
+	}
+    }
+
+    /**
+     * Tries candidates from startPoint onwards until test gives a result, the space is exhausted or stop gives true.
+     *
+     * The candidate array given to test is owned by the worker and zeroed after the search,
+     * so test must copy it if it keeps it. test is called from several threads at the same time.
+     *
+     * @param startPoint first candidate, its length is the nonce size, it is not modified
+     * @param test gives a result for a hit and null for a miss
+     * @param stop checked between candidates, the search ends without a result when it gives true
+     * @return result of a hit or null if there was no hit
+     **/
+    public <T> T search(byte[] startPoint, Function<byte[], T> test, BooleanSupplier stop)
+    {
+	return search(startPoint, test, stop, new SearchProgress());
+    }
+
+    /**
+     * Tries candidates from startPoint onwards like search(startPoint, test, stop),
+     * skipping the candidates already completed in progress and recording the ones tried into it.
+     * A search stopped before it ends is resumed by searching again with the same start point and progress.
+     *
+     * @param startPoint first candidate, its length is the nonce size, it is not modified
+     * @param test gives a result for a hit and null for a miss
+     * @param stop checked between candidates, the search ends without a result when it gives true
+     * @param progress completed candidates, which is updated while the search goes on
+     * @return result of a hit or null if there was no hit
+     **/
+    public <T> T search(byte[] startPoint, Function<byte[], T> test, BooleanSupplier stop, SearchProgress progress)
+    {
+	final long space = spaceSize(startPoint.length);
+	final AtomicLong nextChunk = new AtomicLong();
+	final AtomicReference<T> found = new AtomicReference<T>();
+	final AtomicBoolean done = new AtomicBoolean(false);
+	List<Future<?>> tasks = new ArrayList<Future<?>>(workerCount);
+	for(int w = 0; w < workerCount; w++) {
+	    tasks.add(workers.submit(() -> {
+			byte[] candidate = new byte[startPoint.length];
+			try {
+			    searchChunks(startPoint, candidate, space, nextChunk, found, done, test, stop, progress);
+			}
+			catch(RuntimeException re) {
+			    done.set(true);
+			    throw re;
+			}
+			finally {
+			    Arrays.fill(candidate, (byte)0);
+			}
+		    }));
+	}
+	RuntimeException failure = null;
+	for(Future<?> task : tasks) {
+	    try {
+		awaitReporting(task);
+	    }
+	    catch(ExecutionException ee) {
+		done.set(true);
+		if(null == failure) {
+		    failure = (ee.getCause() instanceof RuntimeException)
+			? (RuntimeException)ee.getCause() : new IllegalStateException(ee.getCause());
+		} else {
+		    failure.addSuppressed(ee.getCause());
+		}
+	    }
+	    catch(InterruptedException ie) {
+		done.set(true);
+		Thread.currentThread().interrupt();
+		if(null == failure) {
+		    failure = new IllegalStateException(ie);
+		}
+	    }
+	}
+	if(null != failure) {
+	    T result = found.getAndSet(null);
+	    if(result instanceof AutoCloseable) {
+		closeQuietly((AutoCloseable)result);
+	    }
+	    throw failure;
+	}
+	return found.get();
+    }
+
+    private <T> void searchChunks(byte[] startPoint, byte[] candidate, long space, AtomicLong nextChunk,
+				  AtomicReference<T> found, AtomicBoolean done, Function<byte[], T> test, BooleanSupplier stop,
+				  SearchProgress progress)
+    {
+	while(!done.get() && !stop.getAsBoolean()) {
+	    // jump over candidates completed by an earlier run
+	    nextChunk.accumulateAndGet(progress.nextIncomplete(nextChunk.get()), Math::max);
+	    long chunkStart = nextChunk.getAndAdd(chunkSize);
+	    if(chunkStart >= space || chunkStart < 0) {
+		return;
+	    }
+	    long chunkEnd = Math.min(space, chunkStart + chunkSize);
+	    long k = Math.min(chunkEnd, progress.nextIncomplete(chunkStart));
+	    long rangeStart = k;
+	    try {
+		while(k < chunkEnd && !done.get() && !stop.getAsBoolean()) {
+		    addLittleEndian(candidate, startPoint, k);
+		    attempts.incrementAndGet();
+		    T result = test.apply(candidate);
+		    if(null != result) {
+			if(found.compareAndSet(null, result)) {
+			    done.set(true);
+			} else if(result instanceof AutoCloseable) {
+			    closeQuietly((AutoCloseable)result);
+			}
+			return;
+		    }
+		    k++;
+		    long next = Math.min(chunkEnd, progress.nextIncomplete(k));
+		    if(next != k) {
+			progress.complete(rangeStart, k);
+			rangeStart = k = next;
+		    }
+		}
+	    }
+	    finally {
+		progress.complete(rangeStart, k);
+	    }
+	}
+    }
+
+    /**
+     * Waits for task to end, calling the reporter every REPORT_MILLIS meanwhile.
+     **/
+    private void awaitReporting(Future<?> task)
+	throws ExecutionException, InterruptedException
+    {
+	while(true) {
+	    Runnable current = reporter;
+	    if(null == current) {
+		task.get();
+		return;
+	    }
+	    try {
+		task.get(REPORT_MILLIS, TimeUnit.MILLISECONDS);
+		return;
+	    }
+	    catch(TimeoutException te) {
+		current.run();
+	    }
+	}
+    }
+
+    private static void closeQuietly(AutoCloseable closeable)
+    {
+	try {
+	    closeable.close();
+	}
+	catch(Exception e) {
+	    // result was not needed anyway
+	}
+    }
+
+    /**
+     * Stops the worker threads.
+     **/
+    public void close()
+    {
+	workers.shutdownNow();
+    }
+}
@@ -0,0 +1,91 @@
+package stego.crypto;
+
+import java.util.*;
+
+/**
+ * Set of completed candidate ranges of a NonceSearch, so that a search can be stopped and resumed without repeating work.
+ *
+ * Ranges are of candidate numbers k, the offsets from the start point of the search, and are merged as they are added.
+ **/
+public class SearchProgress
+{
+    private final TreeMap<Long, Long> completed = new TreeMap<Long, Long>(); // start -> end, exclusive
+
+    public SearchProgress()
+    {
+    }
+
+    /**
+     * Marks candidates from start up to but not including end completed.
+     *
+     * @param start first completed candidate
+     * @param end candidate after the last completed one
+     **/
+    public synchronized void complete(long start, long end)
+    {
+	if(end <= start) {
+	    return;
+	}
+	Map.Entry<Long, Long> before = completed.floorEntry(start);
+	if(null != before && before.getValue() >= start) {
+	    start = before.getKey();
+	    end = Math.max(end, before.getValue());
+	}
+	Map.Entry<Long, Long> after = completed.ceilingEntry(start);
+	while(null != after && after.getKey() <= end) {
+	    end = Math.max(end, after.getValue());
+	    completed.remove(after.getKey());
+	    after = completed.ceilingEntry(start);
+	}
+	completed.put(start, end);
+    }
+
+    /**
+     * Gives the first candidate from k onwards that is not completed.
+     *
+     * @param k candidate to start from
+     * @return k or the end of the completed range that contains k
+     **/
+    public synchronized long nextIncomplete(long k)
+    {
+	Map.Entry<Long, Long> containing = completed.floorEntry(k);
+	if(null != containing && containing.getValue() > k) {
+	    return containing.getValue();
+	}
+	return k;
+    }
+
+    /**
+     * @param space amount of candidates
+     * @return true if all candidates from 0 up to space are completed
+     **/
+    public boolean isExhausted(long space)
+    {
+	return nextIncomplete(0l) >= space;
+    }
+
+    /**
+     * @return amount of completed candidates
+     **/
+    public synchronized long getCompletedCount()
+    {
+	long count = 0l;
+	for(Map.Entry<Long, Long> range : completed.entrySet()) {
+	    count += range.getValue() - range.getKey();
+	}
+	return count;
+    }
+
+    /**
+     * @return copy of the completed ranges as pairs of start and exclusive end
+     **/
+    public synchronized long[][] getRanges()
+    {
+	long[][] result = new long[completed.size()][];
+	int i = 0;
+	for(Map.Entry<Long, Long> range : completed.entrySet()) {
+	    result[i++] = new long[] { range.getKey(), range.getValue() };
+	}
+	return result;
+    }
+}
@@ -0,0 +1,194 @@
+package stego.io;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.*;
+import stego.crypto.*;
+import stego.ecc.ArmorCoder;
+
+/**
+ * Payload armored once and kept for writing onto trails any number of times.
+ *
+ * Bytes written to this stream are split into blocks of ArmorCoder.maxData() bytes and armored like in BaseStegoOutputStream,
+ * so writeTo puts the same bits onto a trail as writing the bytes through a BaseStegoOutputStream would.
+ * Armored blocks are held in memory up to the memory limit, after which all of them are moved to an EncryptedSpillFile.
+ **/
+class ArmoredPayload
+    extends OutputStream
+{
+    /**
+     * Armored block, either in memory or at spillPosition of the spill file.
+     **/
+    private static class Block
+    {
+	private byte[] armored;
+	private final int length;
+	private long spillPosition = -1l;
+	private Block(byte[] armored)
+	{
+	    this.armored = armored;
+	    this.length = armored.length;
+	}
+    }
+
+    private final ArmorCoder armorer = ArmorCoder.getDefaultChain();
+    private final byte[] data = new byte[armorer.maxData()];
+    private int dataPosition = 0;
+    private long length = 0l;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private final long memoryLimitBytes;
+    private final SecureRandom random;
+    private long memoryBytes = 0l;
+    private EncryptedSpillFile spillFile = null;
+    private boolean isClosed = false;
+
+    /**
+     * Creates a payload that holds up to 1/16 of the maximum heap in memory.
+     *
+     * @param random source of the spill keys
+     **/
+    ArmoredPayload(SecureRandom random)
+    {
+	this(random, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    ArmoredPayload(SecureRandom random, long memoryLimitBytes)
+    {
+	this.random = random;
+	this.memoryLimitBytes = memoryLimitBytes;
+    }
+
+    /**
+     * @return amount of bytes written before armoring, like BaseStegoOutputStream.getLength()
+     **/
+    long getLength()
+    {
+	return length;
+    }
+
+    public void write(int b)
+	throws IOException
+    {
+	byte[] myBuffer = new byte[1];
+	myBuffer[0] = (byte)b;
+	write(myBuffer,0,1);
+	Arrays.fill(myBuffer, (byte)0);
+    }
+
+    public void write(byte[] b, int off, int len)
+	throws IOException
+    {
+	if(isClosed) {
+	    throw new IOException("write to an ArmoredPayload after it is closed.");
+	}
+	while(len > 0) {
+	    int blockSize = Math.min(data.length - dataPosition, len);
+	    System.arraycopy(b, off, data, dataPosition, blockSize);
+	    dataPosition += blockSize;
+	    if(data.length == dataPosition) {
+		armorBlock();
+	    }
+	    len -= blockSize;
+	    off += blockSize;
+	}
+    }
+
+    private void armorBlock()
+	throws IOException
+    {
+	if(dataPosition < 1) {
+	    return;
+	}
+	length += dataPosition;
+	byte[] inputBlock = Arrays.copyOf(data, dataPosition);
+	Arrays.fill(data, (byte)0);
+	dataPosition = 0;
+	byte[] armored = armorer.encodeChain(inputBlock);
+	Arrays.fill(inputBlock, (byte)0);
+	blocks.add(new Block(armored));
+	memoryBytes += armored.length;
+	if(memoryBytes > memoryLimitBytes) {
+	    spill();
+	}
+    }
+
+    /**
+     * Moves all blocks held in memory to the spill file.
+     **/
+    private void spill()
+	throws IOException
+    {
+	if(null == spillFile) {
+	    spillFile = new EncryptedSpillFile("armoredpayload", random);
+	}
+	for(Block block : blocks) {
+	    if(null != block.armored) {
+		block.spillPosition = spillFile.append(block.armored, 0, block.length);
+		block.armored = null;
+	    }
+	}
+	memoryBytes = 0l;
+    }
+
+    /**
+     * Armors the last partial block. Nothing can be written after this, but the payload can still be written onto trails.
+     **/
+    public void close()
+	throws IOException
+    {
+	if(!isClosed) {
+	    armorBlock();
+	    isClosed = true;
+	}
+    }
+
+    /**
+     * Writes the armored payload onto cipherTrail from its first hop on.
+     *
+     * @param bitfield target of the bits
+     * @param cipherTrail trail of the payload
+     * @throws IOException if writing the bits or reading the spill file fails
+     **/
+    void writeTo(LargeBitfield bitfield, CipherTrail cipherTrail)
+	throws IOException
+    {
+	if(!isClosed) {
+	    throw new IllegalStateException("ArmoredPayload written onto a trail before it is closed.");
+	}
+	long writtenBits = 0l;
+	for(Block block : blocks) {
+	    if(null != block.armored) {
+		writtenBits += BaseStegoOutputStream.writeArmored(bitfield, cipherTrail, writtenBits, block.armored, block.length);
+		continue;
+	    }
+	    byte[] armored = new byte[block.length];
+	    try {
+		spillFile.read(block.spillPosition, armored, 0, block.length);
+		writtenBits += BaseStegoOutputStream.writeArmored(bitfield, cipherTrail, writtenBits, armored, block.length);
+	    }
+	    finally {
+		Arrays.fill(armored, (byte)0);
+	    }
+	}
+    }
+
+    /**
+     * Zeroes the blocks held in memory and removes the spill file.
+     **/
+    void discard()
+	throws IOException
+    {
+	isClosed = true;
+	Arrays.fill(data, (byte)0);
+	for(Block block : blocks) {
+	    if(null != block.armored) {
+		Arrays.fill(block.armored, (byte)0);
+	    }
+	}
+	blocks.clear();
+	if(null != spillFile) {
+	    spillFile.close();
+	    spillFile = null;
+	}
+    }
+}
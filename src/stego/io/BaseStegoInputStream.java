@@ -118,17 +118,11 @@ public class BaseStegoInputStream
 	throws IOException
     {
 	byte[] armoredData = new byte[armorer.sourcePacketSize()];
-	int targetsRequired = armoredData.length*8;
-	//List<CipherHop> targets = new ArrayList<CipherHop>(targetsRequired*8);
-	List<CipherHop> targets = new ArrayList<CipherHop>(targetsRequired);
-	while(targetsRequired > 0) {
-	    List<CipherHop> targetCandidates = cipherTrail.findBlocksHops(readBits);
-	    final int actualNewTargets = Math.min(targetCandidates.size(), targetsRequired);
-	    List<CipherHop> newTargets = targetCandidates.subList(0, actualNewTargets);
-	    targets.addAll(newTargets);
-	    targetsRequired -= actualNewTargets;
-	    readBits += actualNewTargets;
-	}
+	final int targetCount = armoredData.length*8;
+	final long[] targetAddresses = new long[targetCount];
+	final long[] targetCipherBits = new long[(targetCount + Long.SIZE - 1) / Long.SIZE];
+	cipherTrail.findHopsParallel(readBits, targetAddresses, targetCipherBits, 0, targetCount);
+	readBits += targetCount;
 	List<IOException> ioeList
 	    = IntStream.range(0, armoredData.length)
 	    .parallel()
@@ -137,9 +131,9 @@ public class BaseStegoInputStream
 		    ArrayList<IOException> ioel = new ArrayList<IOException>(8);
 		    for(int targetBit = 0; targetBit<8;targetBit++) {
 			int targetMask = 1 <<targetBit;
-			CipherHop target = targets.get(targetByte*8+targetBit);
+			int targetNumber = targetByte*8+targetBit;
 			try {
-			    if(target.cipherBit ^ bitfield.getBit(target.address)) {
+			    if(CipherTrail.getCipherBit(targetCipherBits, targetNumber) ^ bitfield.getBit(targetAddresses[targetNumber])) {
 				result |= targetMask;
 			    }
 			}
@@ -169,6 +163,8 @@ public class BaseStegoInputStream
 	
 
 	Arrays.fill(armoredData, (byte)0);
+	Arrays.fill(targetAddresses, 0l);
+	Arrays.fill(targetCipherBits, 0l);
 	if(!ioeList.isEmpty()) {
 	    IOException firstException = ioeList.remove(0);
 	    while(!ioeList.isEmpty()) {
@@ -61,44 +61,45 @@ public class BaseStegoOutputStream extends OutputStream
 	Arrays.fill(inputBlock, (byte)0);
 	inputBlock = null;
 
-	List<CipherHop> targets = new ArrayList<CipherHop>(armored.length*8);
-	int targetsRequired = armored.length*8;
-	while(targetsRequired > 0) {
-	    List<CipherHop> targetCandidates = cipherTrail.findBlocksHops(writtenBits);
-	    final int actualNewTargets = Math.min(targetCandidates.size(), targetsRequired);
-	    List<CipherHop> newTargets = targetCandidates.subList(0, actualNewTargets);
-	    targets.addAll(newTargets);
-	    targetsRequired -= actualNewTargets;
-	    writtenBits += actualNewTargets;
+	try {
+	    writtenBits += writeArmored(bitfield, cipherTrail, writtenBits, armored, armored.length);
 	}
+	finally {
+	    Arrays.fill(armored, (byte)0);
+	}
+    }
 
-	List<IOException> ioeList
-	    = IntStream.range(0, armored.length*8)
-	    .parallel()
-	    .mapToObj(bitNumber -> {
-		    CipherHop target = targets.get(bitNumber);
-		    int targetByte = bitNumber / 8;
-		    int targetBit = bitNumber % 8;
-		    int targetMask = 1 << targetBit;
-		    boolean dataBit =( 0 != (armored[targetByte] & targetMask));
-		    try {
-			bitfield.setBit(target.address, target.cipherBit ^ dataBit);
-		    }
-		    catch(IOException ioe) {
-			return ioe;
-		    }
-		    return null;
-		})
-	    .filter(e -> null != e)
-	    .collect(Collectors.toList());
-	Arrays.fill(armored, (byte)0);
-	if(!ioeList.isEmpty()) {
-	    IOException firstException = ioeList.remove(0);
-	    while(!ioeList.isEmpty()) {
-		firstException.addSuppressed(ioeList.remove(0));
-	    }
-	    throw firstException;
+    /**
+     * Writes armored bytes onto the hops of cipherTrail from hop firstHop on, each bit masked by the cipher bit of its hop.
+     *
+     * @param bitfield target of the bits
+     * @param cipherTrail trail giving the hops
+     * @param firstHop number of the hop of the first bit
+     * @param armored the armored bytes, which are not modified
+     * @param armoredLength amount of armored bytes
+     * @return amount of hops written
+     **/
+    static int writeArmored(LargeBitfield bitfield, CipherTrail cipherTrail, long firstHop, byte[] armored, int armoredLength)
+	throws IOException
+    {
+	final int targetCount = armoredLength*8;
+	final long[] targetAddresses = new long[targetCount];
+	final long[] targetCipherBits = new long[(targetCount + Long.SIZE - 1) / Long.SIZE];
+	cipherTrail.findHopsParallel(firstHop, targetAddresses, targetCipherBits, 0, targetCount);
+
+	// states are the armored bits masked by the cipher bits, in the bitset layout of the cipher bits
+	final long[] targetStates = targetCipherBits;
+	for(int bitNumber = 0; bitNumber < targetCount; bitNumber += 8) {
+	    targetStates[bitNumber / Long.SIZE] ^= Byte.toUnsignedLong(armored[bitNumber / 8]) << (bitNumber % Long.SIZE);
+	}
+	try {
+	    bitfield.setBits(targetAddresses, targetStates, targetCount);
+	}
+	finally {
+	    Arrays.fill(targetAddresses, 0l);
+	    Arrays.fill(targetStates, 0l);
 	}
+	return targetCount;
     }
     public void write(byte[] b)
 	throws IOException
@@ -0,0 +1,49 @@
+package stego.io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * LargeBitfield over a plain bitfile, which is written by the time close() returns.
+ *
+ * Backend chooses the implementation a bitfile is opened with. Both keep the salt in the first FileSalt.SIZE bytes
+ * and address the whole file, bit address/8 modulo the file length in the byte and address%8 in the bit,
+ * so a bitfile written with one backend is read with the other.
+ **/
+public interface BitFile
+    extends LargeBitfield, AutoCloseable
+{
+    public enum Backend
+    {
+	/**
+	 * RandomAccessBitFile, reading and writing the byte of each bit with positional FileChannel calls.
+	 **/
+	CHANNEL,
+	/**
+	 * MappedBitFile, mapping the file into memory and changing the bits with loads and stores.
+	 **/
+	MAPPED;
+    }
+
+    /**
+     * Opens file for reading and writing bits with backend. Writes are forced to the device on close().
+     *
+     * @param file the bitfile
+     * @param backend the implementation
+     * @return the bitfile
+     * @throws IOException if opening the file fails
+     **/
+    public static BitFile open(File file, Backend backend)
+	throws IOException
+    {
+	switch(backend) {
+	case MAPPED:
+	    return new MappedBitFile(file);
+	default:
+	    return new RandomAccessBitFile(file, RandomAccessBitFile.Durability.ON_CLOSE);
+	}
+    }
+
+    public void close()
+	throws IOException;
+}
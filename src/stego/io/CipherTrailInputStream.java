@@ -2,9 +2,14 @@ package stego.io;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.*;
 import stego.crypto.*;
 
+/**
+ * Decrypts the bytes read through it with the content mask of a CipherTrail.
+ * Large reads are decrypted in parallel chunks in a ForkJoinPool, the common pool unless one is given.
+ **/
 public class CipherTrailInputStream
     extends FilterInputStream
 {
@@ -12,16 +17,30 @@ public class CipherTrailInputStream
     private final long end;
     private long mark = -1l;
     private final CipherTrail ciphertrail;
+    private final ForkJoinPool pool;
     public CipherTrailInputStream(InputStream in, CipherTrail ciphertrail)
     {
 	super(in);
 	this.ciphertrail = ciphertrail;
+	this.pool = ForkJoinPool.commonPool();
 	position = 0l;
 	end = -1l;
     }
     public CipherTrailInputStream(InputStream in, CipherTrail ciphertrail, long start, long end)
+    {
+	this(in, ciphertrail, start, end, ForkJoinPool.commonPool());
+    }
+    /**
+     * @param in source of the encrypted bytes
+     * @param ciphertrail trail of the mask
+     * @param start position of the first byte of in on the trail
+     * @param end position after which reading is not allowed, or negative for no end
+     * @param pool pool decrypting large reads
+     **/
+    public CipherTrailInputStream(InputStream in, CipherTrail ciphertrail, long start, long end, ForkJoinPool pool)
     {
 	super(in);
+	this.pool = pool;
 	if(end>=0) {
 	    if(start> end) {
 		throw new IllegalArgumentException("CipherTrailInputStream start "+start+" > end "+end);
@@ -92,10 +111,7 @@ public class CipherTrailInputStream
 	if(result<1)
 	    return result;
 	len = result;
-	try(GuardedByteArray mask = new GuardedByteArray(ciphertrail.getMask(position,len))) {
-	    IntStream.range(0,mask.bytes.length).parallel()
-		.forEach(i-> b[i+off] ^= mask.bytes[i]);
-	}
+	ciphertrail.xorMaskParallel(position, b, off, len, pool);
 	position += len;
 	//System.out.println(","+position);
 	return len;
@@ -2,24 +2,51 @@ package stego.io;
 
 import java.io.*;
 import java.util.Arrays;
-import java.util.stream.IntStream;
+import java.util.concurrent.ForkJoinPool;
 import stego.crypto.*;
 
+/**
+ * Encrypts the bytes written through it with the content mask of a CipherTrail.
+ * Large writes are encrypted in parallel chunks in a ForkJoinPool, the common pool unless one is given.
+ **/
 public class CipherTrailOutputStream
     extends FilterOutputStream
 {
     private long position;
     private final long end;
     private final CipherTrail ciphertrail;
+    private final ForkJoinPool pool;
     public CipherTrailOutputStream(OutputStream out, CipherTrail ciphertrail)
+    {
+	this(out, ciphertrail, ForkJoinPool.commonPool());
+    }
+    /**
+     * @param out target of the encrypted bytes
+     * @param ciphertrail trail of the mask
+     * @param pool pool encrypting large writes
+     **/
+    public CipherTrailOutputStream(OutputStream out, CipherTrail ciphertrail, ForkJoinPool pool)
     {
 	super(out);
 	this.ciphertrail = ciphertrail;
+	this.pool = pool;
 	position = 0l;
 	end = -1l;
     }
     public CipherTrailOutputStream(OutputStream out, CipherTrail ciphertrail, long start, long end)
 	throws IOException
+    {
+	this(out, ciphertrail, start, end, ForkJoinPool.commonPool());
+    }
+    /**
+     * @param out target of the encrypted bytes
+     * @param ciphertrail trail of the mask
+     * @param start first position written
+     * @param end last position allowed, negative for no limit
+     * @param pool pool encrypting large writes
+     **/
+    public CipherTrailOutputStream(OutputStream out, CipherTrail ciphertrail, long start, long end, ForkJoinPool pool)
+	throws IOException
     {
 	super(out);
 	if(end>=0) {
@@ -28,6 +55,7 @@ public class CipherTrailOutputStream
 	    }
 	}
 	this.ciphertrail = ciphertrail;
+	this.pool = pool;
 	this.position = 0l;
 	this.end = end;
 	//	seek(start);
@@ -73,10 +101,9 @@ public class CipherTrailOutputStream
 	    throw new IllegalArgumentException("("+off+"<0)||("+len+"<0)||("+off+">="+b.length+")");
 	}
 	throwIfOver(position+len);
-	try(GuardedByteArray mask = new GuardedByteArray(ciphertrail.getMask(position,len))) {
-	    IntStream.range(0,mask.bytes.length).parallel()
-		.forEach(i-> mask.bytes[i] ^= b[i+off]);
-	    super.out.write(mask.bytes);
+	try(GuardedByteArray ciphered = new GuardedByteArray(Arrays.copyOfRange(b, off, off+len))) {
+	    ciphertrail.xorMaskParallel(position, ciphered.bytes, 0, len, pool);
+	    super.out.write(ciphered.bytes);
 	    position += len;
 	}
     }
@@ -0,0 +1,208 @@
+package stego.io;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import stego.crypto.GuardedByteArray;
+
+/**
+ * Bounded cache of decrypted pages read through a PositionalCipherReader.
+ *
+ * Pages are kept in stripes keyed by page number, so that threads reading different
+ * pages do not wait on the same monitor. A full stripe evicts by the Eviction policy,
+ * least recently used by default.
+ * Evicted pages and all pages at close() are zeroed as GuardedByteArrays.
+ **/
+public class DecryptedPageCache
+    implements AutoCloseable
+{
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_CAPACITY_PAGES = 1024;
+    public static final int STRIPES = 16;
+
+    /**
+     * Order in which a full stripe drops its pages.
+     **/
+    public enum Eviction
+    {
+	/** Drops the page read least recently; suits reads that return to the same pages. **/
+	LRU,
+	/** Drops the page loaded first; hits do not reorder the stripe. **/
+	FIFO
+    }
+
+    private static class Page extends GuardedByteArray
+    {
+	private final int length;
+	private Page(byte[] contents, int length)
+	{
+	    super(contents);
+	    this.length = length;
+	}
+    }
+
+    private class Stripe extends LinkedHashMap<Long, Page>
+    {
+	private static final long serialVersionUID = 1l;
+	private final int capacity;
+	private Stripe(int capacity, Eviction eviction)
+	{
+	    super(16, 0.75f, Eviction.LRU == eviction); // access order for least recently used, insertion order for first in first out
+	    this.capacity = capacity;
+	}
+	protected boolean removeEldestEntry(Map.Entry<Long, Page> eldest)
+	{
+	    if(size() > capacity) {
+		eldest.getValue().close();
+		evictions.incrementAndGet();
+		return true;
+	    }
+	    return false;
+	}
+    }
+
+    private final PositionalCipherReader reader;
+    private final int pageSize;
+    private final Stripe[] stripes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile boolean isClosed = false;
+
+    /**
+     * Creates a cache with default page size and capacity.
+     *
+     * @param reader the reader whose decrypted contents are cached
+     **/
+    public DecryptedPageCache(PositionalCipherReader reader)
+    {
+	this(reader, DEFAULT_PAGE_SIZE, DEFAULT_CAPACITY_PAGES);
+    }
+
+    /**
+     * Creates a cache that holds at most capacityPages pages of pageSize bytes.
+     *
+     * @param reader the reader whose decrypted contents are cached
+     * @param pageSize size of a page in bytes
+     * @param capacityPages maximum amount of pages kept in memory, rounded up to a multiple of STRIPES
+     **/
+    public DecryptedPageCache(PositionalCipherReader reader, int pageSize, int capacityPages)
+    {
+	this(reader, pageSize, capacityPages, Eviction.LRU);
+    }
+
+    /**
+     * Creates a cache that holds at most capacityPages pages of pageSize bytes and drops them by eviction.
+     *
+     * @param reader the reader whose decrypted contents are cached
+     * @param pageSize size of a page in bytes
+     * @param capacityPages maximum amount of pages kept in memory, rounded up to a multiple of STRIPES
+     * @param eviction order in which a full stripe drops its pages
+     **/
+    public DecryptedPageCache(PositionalCipherReader reader, int pageSize, int capacityPages, Eviction eviction)
+    {
+	if(pageSize < 1 || capacityPages < 1) {
+	    throw new IllegalArgumentException("page size "+pageSize+" and capacity "+capacityPages+" must be positive.");
+	}
+	this.reader = reader;
+	this.pageSize = pageSize;
+	this.stripes = new Stripe[STRIPES];
+	int stripeCapacity = (capacityPages + STRIPES - 1) / STRIPES;
+	for(int i = 0; i < stripes.length; i++) {
+	    stripes[i] = new Stripe(stripeCapacity, eviction);
+	}
+    }
+
+    /**
+     * Reads one decrypted byte, loading its page if it is not cached.
+     *
+     * @param position position of the byte in the reader
+     * @return the byte as unsigned int or -1 if position is past the end of the file
+     * @throws IOException if reading fails or the cache is closed
+     **/
+    public int read(long position)
+	throws IOException
+    {
+	long pageNumber = position / pageSize;
+	int offsetInPage = Math.toIntExact(position - pageNumber * pageSize);
+	Stripe stripe = stripes[Math.floorMod(Long.hashCode(pageNumber), STRIPES)];
+	synchronized(stripe) {
+	    throwIfClosed();
+	    Page page = stripe.get(pageNumber);
+	    if(null != page) {
+		hits.incrementAndGet();
+		return readFromPage(page, offsetInPage);
+	    }
+	}
+	misses.incrementAndGet();
+	Page loaded = loadPage(pageNumber);
+	synchronized(stripe) {
+	    if(isClosed) {
+		loaded.close();
+		throwIfClosed();
+	    }
+	    Page page = stripe.putIfAbsent(pageNumber, loaded);
+	    if(null != page) {
+		loaded.close(); // another thread loaded it meanwhile
+	    } else {
+		page = loaded;
+	    }
+	    return readFromPage(page, offsetInPage);
+	}
+    }
+
+    private static int readFromPage(Page page, int offsetInPage)
+    {
+	if(offsetInPage >= page.length) {
+	    return -1;
+	}
+	return Byte.toUnsignedInt(page.bytes[offsetInPage]);
+    }
+
+    private Page loadPage(long pageNumber)
+	throws IOException
+    {
+	byte[] contents = new byte[pageSize];
+	int length = reader.read(pageNumber * pageSize, contents, 0, pageSize);
+	return new Page(contents, Math.max(length, 0));
+    }
+
+    private void throwIfClosed()
+	throws IOException
+    {
+	if(isClosed) {
+	    throw new IOException("Access to DecryptedPageCache after it is closed.");
+	}
+    }
+
+    public long getHitCount()
+    {
+	return hits.get();
+    }
+
+    public long getMissCount()
+    {
+	return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+	return evictions.get();
+    }
+
+    /**
+     * Zeroes and drops all cached pages. The reader is not closed.
+     **/
+    public void close()
+    {
+	isClosed = true;
+	for(Stripe stripe : stripes) {
+	    synchronized(stripe) {
+		for(Page page : stripe.values()) {
+		    page.close();
+		}
+		stripe.clear();
+	    }
+	}
+    }
+}
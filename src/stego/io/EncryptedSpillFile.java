@@ -0,0 +1,92 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import stego.crypto.*;
+
+/**
+ * Append-only temporary file for data that does not fit in memory, masked with a random CipherTrail.
+ *
+ * Every byte is masked with the mask byte of its own position in the file, so no mask byte is used twice,
+ * and the keys exist only in memory, so the file can not be read after close(), which also removes it.
+ **/
+class EncryptedSpillFile
+    implements AutoCloseable
+{
+    private final File file;
+    private final FileChannel channel;
+    private final CipherTrail trail;
+    private long length = 0l;
+
+    /**
+     * Creates a new empty spill file in the default temporary directory.
+     *
+     * @param prefix prefix of the file name
+     * @param random source of the keys
+     * @throws IOException if creating the file fails
+     **/
+    EncryptedSpillFile(String prefix, SecureRandom random)
+	throws IOException
+    {
+	this.file = File.createTempFile(prefix, ".tmp");
+	this.file.deleteOnExit();
+	this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	this.trail = CipherTrail.random(random);
+    }
+
+    /**
+     * Appends the bytes to the end of the file. The bytes are masked in place, so the caller zeroes them only if it wants to.
+     *
+     * @param buffer the bytes, which are overwritten by their masked form
+     * @param offset offset in buffer
+     * @param len amount of bytes
+     * @return position of the bytes in the file
+     * @throws IOException if writing fails
+     **/
+    synchronized long append(byte[] buffer, int offset, int len)
+	throws IOException
+    {
+	long position = length;
+	trail.xorMask(position, buffer, offset, len);
+	ByteBuffer source = ByteBuffer.wrap(buffer, offset, len);
+	while(source.hasRemaining()) {
+	    channel.write(source, position + source.position() - offset);
+	}
+	length += len;
+	return position;
+    }
+
+    /**
+     * Reads bytes appended before.
+     *
+     * @param position position of the first byte in the file
+     * @param buffer target of the bytes
+     * @param offset offset in buffer
+     * @param len amount of bytes
+     * @throws IOException if reading fails or the file ends before len bytes
+     **/
+    void read(long position, byte[] buffer, int offset, int len)
+	throws IOException
+    {
+	ByteBuffer target = ByteBuffer.wrap(buffer, offset, len);
+	while(target.hasRemaining()) {
+	    if(channel.read(target, position + target.position() - offset) < 0) {
+		throw new EOFException("spill file "+file+" ended early.");
+	    }
+	}
+	trail.xorMask(position, buffer, offset, len);
+    }
+
+    /**
+     * Closes and removes the file.
+     **/
+    public void close()
+	throws IOException
+    {
+	channel.close();
+	Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,83 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import stego.crypto.*;
+
+/**
+ * Reading and writing of small local state files encrypted with a passcode.
+ *
+ * The file starts with a random salt in clear, used as the nonce of a CipherTrail of the passcode,
+ * and the rest is encrypted with the content mask of that trail. A new salt is drawn for every write,
+ * so no two versions of a file share a mask. The encrypted part starts with a runway of RUNWAY_MARKER bytes,
+ * which tells whether the passcode is right. Files are replaced through a temporary file and an atomic rename.
+ **/
+class EncryptedStateFile
+{
+    private static final int RUNWAY_SIZE = 8;
+
+    private EncryptedStateFile()
+    {
+    }
+
+    /**
+     * Reads and decrypts the contents of file.
+     *
+     * @param file the state file
+     * @param passcode the passcode of the file, which is not modified
+     * @return the decrypted contents without the runway, which the caller should zero
+     * @throws IOException if reading fails or the passcode is wrong
+     **/
+    static byte[] read(File file, char[] passcode)
+	throws IOException
+    {
+	byte[] contents = Files.readAllBytes(file.toPath());
+	if(contents.length < FileSalt.SIZE + RUNWAY_SIZE) {
+	    throw new IOException("state file "+file+" is too short.");
+	}
+	byte[] body = Arrays.copyOfRange(contents, FileSalt.SIZE, contents.length);
+	try(FileSalt salt = new FileSalt(Arrays.copyOf(contents, FileSalt.SIZE))) {
+	    new CipherTrail(salt, passcode, salt.bytes).xorMask(0l, body, 0, body.length);
+	    for(int i = 0; i < RUNWAY_SIZE; i++) {
+		if(Metadata.RUNWAY_MARKER != body[i]) {
+		    throw new IOException("state file "+file+" is not of this passcode.");
+		}
+	    }
+	    return Arrays.copyOfRange(body, RUNWAY_SIZE, body.length);
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	    Arrays.fill(contents, (byte)0);
+	}
+    }
+
+    /**
+     * Encrypts contents with a new salt and replaces file with them.
+     *
+     * @param file the state file
+     * @param passcode the passcode of the file, which is not modified
+     * @param contents the contents, which are not modified
+     * @throws IOException if writing fails
+     **/
+    static void write(File file, char[] passcode, byte[] contents)
+	throws IOException
+    {
+	byte[] body = new byte[RUNWAY_SIZE + contents.length];
+	Arrays.fill(body, 0, RUNWAY_SIZE, Metadata.RUNWAY_MARKER);
+	System.arraycopy(contents, 0, body, RUNWAY_SIZE, contents.length);
+	File temporary = new File(file.getPath()+".tmp");
+	try(FileSalt salt = new FileSalt()) {
+	    new CipherTrail(salt, passcode, salt.bytes).xorMask(0l, body, 0, body.length);
+	    try(FileOutputStream fos = new FileOutputStream(temporary)) {
+		fos.write(salt.bytes);
+		fos.write(body);
+		fos.getFD().sync();
+	    }
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	}
+	Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
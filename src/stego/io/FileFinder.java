@@ -2,7 +2,10 @@ package stego.io;
 
 import java.io.*;
 import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BooleanSupplier;
 import java.util.zip.*;
 import stego.ecc.*;
 import stego.crypto.*;
@@ -16,9 +19,22 @@ public class FileFinder
     implements AutoCloseable
 {
     private LargeBitfield bitfile;
+    private final int searchWorkers;
     private volatile boolean isCancelled = false;
+    private File checkpointFile = null;
+    private Keyring keyring = null;
     public FileFinder(LargeBitfield bitfile) {
+	this(bitfile, Runtime.getRuntime().availableProcessors());
+    }
+    /**
+     * Creates a finder that tries nonce candidates on searchWorkers threads in parallel.
+     *
+     * @param bitfile the bitfile to search
+     * @param searchWorkers amount of threads searching nonces
+     **/
+    public FileFinder(LargeBitfield bitfile, int searchWorkers) {
 	this.bitfile = bitfile;
+	this.searchWorkers = searchWorkers;
     }
     public void close()
 	throws IOException
@@ -31,6 +47,74 @@ public class FileFinder
     public void uncancel() {
 	isCancelled = false;
     }
+    /**
+     * Makes searches keep their progress in an encrypted SearchCheckpoint file and resume from it.
+     * The file is removed when the search finds its metadata.
+     *
+     * @param checkpointFile the state file or null for searches without state
+     **/
+    public void setCheckpointFile(File checkpointFile) {
+	this.checkpointFile = checkpointFile;
+    }
+    /**
+     * Makes searches look up the metadata of a passcode in keyring before searching,
+     * and record the metadata they find into it and save it.
+     *
+     * @param keyring the keyring or null for searches without one
+     **/
+    public void setKeyring(Keyring keyring) {
+	this.keyring = keyring;
+    }
+    /**
+     * Reads the metadata of passcode from the bitfile with the nonce recorded in the keyring, so that a file written
+     * again since it was recorded gives its current metadata. An entry that no longer opens a file is removed.
+     *
+     * @return the metadata or null if the keyring has no entry that opens a file of passcode
+     **/
+    Metadata lookupKeyring(char[] passcode)
+	throws IOException
+    {
+	byte[] recorded = (null == keyring) ? null : keyring.getNonce(bitfile.getFileSalt(), passcode);
+	if(null == recorded) {
+	    return null;
+	}
+	try {
+	    Metadata treasure = tryMetadata(passcode, recorded);
+	    if(null == treasure) {
+		keyring.remove(bitfile.getFileSalt(), passcode);
+		keyring.save();
+	    }
+	    return treasure;
+	}
+	catch(UncheckedIOException uioe) {
+	    throw uioe.getCause();
+	}
+	finally {
+	    Arrays.fill(recorded, (byte)0);
+	}
+    }
+    void recordFound(char[] passcode, Metadata found, SearchCheckpoint checkpoint)
+	throws IOException
+    {
+	if(null == found) {
+	    return;
+	}
+	if(null != checkpoint) {
+	    checkpoint.delete();
+	}
+	if(null != keyring) {
+	    keyring.put(bitfile.getFileSalt(), passcode, found);
+	    keyring.save();
+	}
+    }
+    private SearchCheckpoint openCheckpoint(char[] passcode)
+	throws IOException
+    {
+	if(null == checkpointFile) {
+	    return null;
+	}
+	return SearchCheckpoint.open(checkpointFile, bitfile.getFileSalt(), passcode);
+    }
     /*
     private boolean incrementAndCheck(byte[] current, byte[] target)
     {
@@ -65,22 +149,24 @@ public class FileFinder
     public Metadata findMetadata(char[] passcode, int nonceSizeGuess)
 	throws IOException
     {
-	Metadata result = findMetadata(passcode, nonceSizeGuess, new SecureRandom());
-	if(null != result) {
-	    return result;
+	Metadata known = lookupKeyring(passcode);
+	if(null != known) {
+	    return known;
 	}
-	int currentNonceSize = 0;
-	boolean found = false;
-	while(!isCancelled && !found) {
-	    if(nonceSizeGuess != currentNonceSize) {
-		result = findMetadata(passcode, currentNonceSize, new SecureRandom());
-		if(null != result) {
-		    return result;
+	try(SearchCheckpoint checkpoint = openCheckpoint(passcode);
+	    NonceSearch search = new NonceSearch(searchWorkers)) {
+	    search.setReporter(CommandLineInterface::showProgress);
+	    Metadata result = findMetadata(passcode, nonceSizeGuess, new SecureRandom(), checkpoint, search);
+	    int currentNonceSize = 0;
+	    while(!isCancelled && (null == result)) {
+		if(nonceSizeGuess != currentNonceSize) {
+		    result = findMetadata(passcode, currentNonceSize, new SecureRandom(), checkpoint, search);
 		}
+		currentNonceSize++;
 	    }
-	    currentNonceSize++;
+	    recordFound(passcode, result, checkpoint);
+	    return result;
 	}
-	return result;
     }
     //    public InputStream find(char[] passcode, int nonceBytes, SecureRandom random)
     public InputStream open(Metadata treasure)
@@ -94,29 +180,258 @@ public class FileFinder
 				 treasure.getLength())
 				);
     }
+    /**
+     * Searches the metadata of passcode among nonces of nonceBytes bytes, starting from a random point.
+     * Candidates are tried in parallel by a NonceSearch and the search stops at the first valid metadata or cancel().
+     *
+     * @param passcode the passcode of the file
+     * @param nonceBytes size of the nonce
+     * @param random source of the start point
+     * @return the metadata or null if it was not found or the search was cancelled
+     * @throws IOException if reading the bitfile fails
+     **/
     public Metadata findMetadata(char[] passcode, int nonceBytes, SecureRandom random)
 	throws IOException
     {
-	Nonce nonceStartPoint = new Nonce(new byte[nonceBytes]);
-	random.nextBytes(nonceStartPoint.bytes);
-	Nonce currentNonce = new Nonce(nonceStartPoint.bytes.clone());
-	boolean exhausted = false;
-	Metadata treasure = null;
-	while(!isCancelled && !exhausted) {
-	    CommandLineInterface.showProgress();
-	    try(BaseStegoInputStream metaStream = new BaseStegoInputStream(bitfile,
-						  new CipherTrail(bitfile.getFileSalt(),passcode, currentNonce.bytes),
-						  Metadata.Field.size(),
-						      Metadata.getMetadataArmorChain())) {
-		treasure = Metadata.read(metaStream);
-		if(treasure.isValid()) {
-		    return treasure;
-		} else {
-		    exhausted = !currentNonce.incrementAndCheck(nonceStartPoint);
+	Metadata known = lookupKeyring(passcode);
+	if(null != known) {
+	    return known;
+	}
+	try(SearchCheckpoint checkpoint = openCheckpoint(passcode);
+	    NonceSearch search = new NonceSearch(searchWorkers)) {
+	    search.setReporter(CommandLineInterface::showProgress);
+	    Metadata result = findMetadata(passcode, nonceBytes, random, checkpoint, search);
+	    recordFound(passcode, result, checkpoint);
+	    return result;
+	}
+    }
+
+    /**
+     * Searches nonces of nonceBytes bytes with search, which the caller creates once for all nonce sizes it searches.
+     **/
+    private Metadata findMetadata(char[] passcode, int nonceBytes, SecureRandom random, SearchCheckpoint checkpoint,
+				  NonceSearch search)
+	throws IOException
+    {
+	if(null == checkpoint) {
+	    try(Nonce nonceStartPoint = new Nonce(new byte[nonceBytes])) {
+		random.nextBytes(nonceStartPoint.bytes);
+		return search.search(nonceStartPoint.bytes,
+				     candidate -> tryMetadata(passcode, candidate),
+				     () -> isCancelled);
+	    }
+	    catch(UncheckedIOException uioe) {
+		throw uioe.getCause();
+	    }
+	}
+	try(Nonce nonceStartPoint = new Nonce(checkpoint.getStartPoint(nonceBytes, random).clone())) {
+	    return search.search(nonceStartPoint.bytes,
+				 candidate -> tryMetadata(passcode, candidate),
+				 () -> {
+				     try {
+					 checkpoint.saveIfDue();
+				     }
+				     catch(IOException ioe) {
+					 throw new UncheckedIOException(ioe);
+				     }
+				     return isCancelled;
+				 },
+				 checkpoint.getProgress(nonceBytes));
+	}
+	catch(UncheckedIOException uioe) {
+	    throw uioe.getCause();
+	}
+	finally {
+	    checkpoint.save();
+	}
+    }
+
+    /**
+     * Receiver of the metadata found by findAll.
+     **/
+    public interface FoundReceiver
+    {
+	/**
+	 * @param index index of the passcode in the list given to findAll
+	 * @param metadata the metadata of the passcode, which the receiver closes
+	 * @throws IOException if handling the metadata fails, which ends the search
+	 **/
+	void found(int index, Metadata metadata)
+	    throws IOException;
+    }
+
+    /**
+     * Searches the metadata of several passcodes in one pass over the nonce space.
+     *
+     * Every nonce candidate is tried for each passcode that is not found yet, so the passcodes share the enumeration,
+     * the worker threads and the cached pages of the bitfile instead of searching one after another.
+     * Nonce sizes are searched from nonceSizeGuess and then from 0 up, like findMetadata.
+     * The search runs in the background while receiver is called on the calling thread as soon as each metadata is found,
+     * so the payload of one passcode can be read while the others are still searched.
+     * Keyring hits are given first without searching. Search checkpoints are not used.
+     *
+     * @param passcodes the passcodes, which are not modified
+     * @param nonceSizeGuess nonce size searched first
+     * @param receiver called for each found metadata
+     * @return amount of passcodes found, which is less than the amount of passcodes only if the search was cancelled
+     * @throws IOException if reading the bitfile or receiver fails
+     **/
+    public int findAll(List<char[]> passcodes, int nonceSizeGuess, FoundReceiver receiver)
+	throws IOException
+    {
+	final int count = passcodes.size();
+	final AtomicReferenceArray<Metadata> results = new AtomicReferenceArray<Metadata>(count);
+	final AtomicIntegerArray claimed = new AtomicIntegerArray(count); // 1 when the passcode is found
+	final AtomicInteger remaining = new AtomicInteger(count);
+	final BlockingQueue<Integer> foundQueue = new LinkedBlockingQueue<Integer>();
+	final AtomicBoolean stopped = new AtomicBoolean(false);
+	final boolean[] fromKeyring = new boolean[count];
+	for(int i = 0; i < count; i++) {
+	    Metadata known = lookupKeyring(passcodes.get(i));
+	    if(null != known) {
+		fromKeyring[i] = true;
+		claimed.set(i, 1);
+		results.set(i, known);
+		remaining.decrementAndGet();
+		foundQueue.add(i);
+	    }
+	}
+	FutureTask<Void> search
+	    = new FutureTask<Void>(() -> searchAll(passcodes, nonceSizeGuess, claimed, results, remaining, foundQueue,
+						   () -> isCancelled || stopped.get()),
+				   null);
+	Thread searchThread = new Thread(search, "FileFinder.findAll");
+	searchThread.setDaemon(true);
+	searchThread.start();
+	int delivered = 0;
+	try {
+	    while(delivered < count) {
+		Integer index = foundQueue.poll(100l, TimeUnit.MILLISECONDS);
+		if(null == index) {
+		    if(search.isDone() && foundQueue.isEmpty()) {
+			break;
+		    }
+		    continue;
+		}
+		Metadata metadata = results.getAndSet(index, null);
+		if(!fromKeyring[index]) {
+		    recordFound(passcodes.get(index), metadata, null);
 		}
+		delivered++;
+		receiver.found(index, metadata);
 	    }
+	    search.get();
+	    return delivered;
+	}
+	catch(InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("search for "+count+" passcodes was interrupted.");
+	}
+	catch(ExecutionException ee) {
+	    if(ee.getCause() instanceof UncheckedIOException) {
+		throw ((UncheckedIOException)ee.getCause()).getCause();
+	    }
+	    if(ee.getCause() instanceof RuntimeException) {
+		throw (RuntimeException)ee.getCause();
+	    }
+	    throw new IllegalStateException(ee.getCause());
+	}
+	finally {
+	    stopped.set(true);
+	    try {
+		searchThread.join();
+	    }
+	    catch(InterruptedException ie) {
+		Thread.currentThread().interrupt();
+	    }
+	    for(int i = 0; i < count; i++) {
+		Metadata undelivered = results.getAndSet(i, null);
+		if(null != undelivered) {
+		    undelivered.close();
+		}
+	    }
+	}
+    }
+
+    private void searchAll(List<char[]> passcodes, int nonceSizeGuess, AtomicIntegerArray claimed,
+			   AtomicReferenceArray<Metadata> results, AtomicInteger remaining, BlockingQueue<Integer> foundQueue, BooleanSupplier stop)
+    {
+	SecureRandom random = new SecureRandom();
+	try(NonceSearch search = new NonceSearch(searchWorkers)) {
+	    search.setReporter(CommandLineInterface::showProgress);
+	    for(int step = -1; (remaining.get() > 0) && !stop.getAsBoolean(); step++) {
+		if(step == nonceSizeGuess) {
+		    continue;
+		}
+		try(Nonce nonceStartPoint = new Nonce(new byte[(step < 0) ? nonceSizeGuess : step])) {
+		    random.nextBytes(nonceStartPoint.bytes);
+		    search.search(nonceStartPoint.bytes,
+				  candidate -> {
+				      for(int i = 0; i < claimed.length(); i++) {
+					  if(0 != claimed.get(i)) {
+					      continue;
+					  }
+					  Metadata treasure = tryMetadata(passcodes.get(i), candidate);
+					  if(null == treasure) {
+					      continue;
+					  }
+					  if(!claimed.compareAndSet(i, 0, 1)) {
+					      treasure.close();
+					      continue;
+					  }
+					  results.set(i, treasure);
+					  foundQueue.add(i);
+					  if(0 == remaining.decrementAndGet()) {
+					      return Boolean.TRUE;
+					  }
+				      }
+				      return null;
+				  },
+				  stop);
+		}
+	    }
+	}
+    }
+
+    Metadata tryMetadata(char[] passcode, byte[] nonce)
+    {
+	Metadata treasure = tryMetadata(new CipherTrail(bitfile.getFileSalt(), passcode, nonce));
+	if(null != treasure) {
+	    treasure.setNonce(nonce);
+	}
+	return treasure;
+    }
+
+    /**
+     * Reads the metadata of metaTrail from the bitfile, for a caller who has derived the trail already.
+     *
+     * @param metaTrail trail of the passcode and nonce candidate
+     * @return the valid metadata or null if the candidate is wrong
+     **/
+    Metadata tryMetadata(CipherTrail metaTrail)
+    {
+	try {
+	    if(!Metadata.probeRunway(bitfile, metaTrail)) {
+		return null;
+	    }
+	}
+	catch(IOException ioe) {
+	    throw new UncheckedIOException(ioe);
+	}
+	try(BaseStegoInputStream metaStream = new BaseStegoInputStream(bitfile,
+								       metaTrail,
+								       Metadata.Field.size(),
+								       Metadata.getMetadataArmorChain())) {
+	    Metadata treasure = Metadata.read(metaStream);
+	    if(treasure.isValid()) {
+		return treasure;
+	    }
+	    treasure.close();
+	    return null;
+	}
+	catch(IOException ioe) {
+	    throw new UncheckedIOException(ioe);
 	}
-	return null;
     }
 
     public static void main(String[] arg)
@@ -15,7 +15,8 @@ import stego.ecc.*;
 /**
  * FileHider writes data into bitfiles onto trails that are findable only by the name of the trail.
  *
- * The contents written to the stream are first gzipped and then armored, encrypted and written by {@link BaseStegoOutputStream}.
+ * The contents are gzipped and armored once into an {@link ArmoredPayload}, which is then encrypted and written onto the trail
+ * in each bitfield given to accept, so the contents are read only once and may come from a pipe.
  * When the main stream is closed, the amount of gzipped and armored data and the location key that was used for its {@link stego.crypto.CipherTrail}
  * are written as a {@link Metadata} into trail that is got from the name of the stream and a random nonce whose size is random amount of bytes.
  *
@@ -29,14 +30,36 @@ public class FileHider
 	       Consumer<LargeBitfield>
 {
     private final File plainfile;
+    private final InputStream source;
+    private final String name;
+    private ArmoredPayload payload = null;
     private MetadataHider metadataHider = null;
     private Metadata metadata = null;
     private final int minimumNonceBytes;
     private final SecureRandom random;
     //private byte[] nonce;
     public FileHider(File plainfile, int minimumNonceBytes, SecureRandom random)
+    {
+	this(plainfile, null, plainfile.getName(), minimumNonceBytes, random);
+    }
+    /**
+     * Creates a hider of the contents of source, findable by name.
+     * source is read to its end and closed on the first accept, so it can be a pipe or stdin.
+     *
+     * @param source the contents
+     * @param name name of the trail
+     * @param minimumNonceBytes minimum size of the nonce of the metadata
+     * @param random source of the keys and the nonce
+     **/
+    public FileHider(InputStream source, String name, int minimumNonceBytes, SecureRandom random)
+    {
+	this(null, source, name, minimumNonceBytes, random);
+    }
+    private FileHider(File plainfile, InputStream source, String name, int minimumNonceBytes, SecureRandom random)
     {
 	this.plainfile = plainfile;
+	this.source = source;
+	this.name = name;
 	metadata = Metadata.createMetadata(random, -1l);
 	this.minimumNonceBytes = minimumNonceBytes;
 	this.random = random;
@@ -52,42 +75,75 @@ public class FileHider
 	}
     }
     
+    /**
+     * Records the nonce of the metadata into keyring for the name in the bitfile of filesalt. Does nothing before the first accept.
+     *
+     * @param keyring the keyring
+     * @param filesalt salt of the bitfile this was accepted into
+     **/
+    public void record(Keyring keyring, FileSalt filesalt)
+    {
+	if(null != metadataHider) {
+	    metadataHider.record(keyring, filesalt);
+	}
+    }
+
     public void close()
     {
 	metadata.close();
 	//Arrays.fill(nonce, (byte)0);
 	//	nonce = null;
+	if(null != payload) {
+	    try {
+		payload.discard();
+	    }
+	    catch(IOException ioe) {
+		throw new UncheckedIOException(ioe);
+	    }
+	}
     }
 
     public static final int BUFSIZE = 1024*1024;
+    /**
+     * Writes the payload onto its trail in bitfield. The source is gzipped and armored only on the first call,
+     * and later calls write the same ArmoredPayload again.
+     **/
     private void writeData(LargeBitfield bitfield)
 	throws IOException
     {
-	try(FileInputStream in = new FileInputStream(this.plainfile)) {
+	if(null == payload) {
+	    armorPayload();
+	}
+	try(GuardedByteArray datakey = metadata.getKey()) {
+	    payload.writeTo(bitfield, new CipherTrail(bitfield.getFileSalt(), datakey));
+	}
+    }
+    private void armorPayload()
+	throws IOException
+    {
+	ArmoredPayload armored = new ArmoredPayload(random);
+	try(InputStream in = (null == source) ? new FileInputStream(this.plainfile) : source) {
 	    try(GuardedByteArray buffer = new GuardedByteArray(new byte[BUFSIZE])) {
-		try(GuardedByteArray datakey = metadata.getKey()) {
-		    BaseStegoOutputStream stego = null;
-		    try(BaseStegoOutputStream stegoOut = new BaseStegoOutputStream(bitfield, new CipherTrail(bitfield.getFileSalt(), datakey))) {
-			try(GZIPOutputStream defStream = new GZIPOutputStream(stegoOut, BUFSIZE, true)) {
-			    int readBytes;
-			    do {
-				readBytes = in.read(buffer.bytes);
-				if(readBytes > 0) {
-				    defStream.write(buffer.bytes, 0, readBytes);
-				}
-			    } while(readBytes > 0);
-			    defStream.flush();
+		try(GZIPOutputStream defStream = new GZIPOutputStream(armored, BUFSIZE, true)) {
+		    int readBytes;
+		    do {
+			readBytes = in.read(buffer.bytes);
+			if(readBytes > 0) {
+			    defStream.write(buffer.bytes, 0, readBytes);
 			}
-			stego = stegoOut;
-		    }
-		    if(null == this.metadataHider) {
-			Metadata completeMetadata = new Metadata(metadata.getKeyCopy(), stego.getLength());
-			metadata.close();
-			metadata = completeMetadata;
-			this.metadataHider = new MetadataHider(metadata, plainfile.getName().toCharArray(), minimumNonceBytes, random);
-		    }
+		    } while(readBytes > 0);
+		    defStream.flush();
 		}
 	    }
 	}
+	catch(IOException | RuntimeException e) {
+	    armored.discard();
+	    throw e;
+	}
+	payload = armored;
+	Metadata completeMetadata = new Metadata(metadata.getKeyCopy(), armored.getLength());
+	metadata.close();
+	metadata = completeMetadata;
+	this.metadataHider = new MetadataHider(metadata, name.toCharArray(), minimumNonceBytes, random);
     }
 }
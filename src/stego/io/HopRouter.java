@@ -0,0 +1,313 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.*;
+import stego.crypto.*;
+
+/**
+ * Collects the bits the writers of a rewrite would set, bucketed by the ProtectedFileSlice they land in,
+ * so that the trail of each writer is computed once per rewrite instead of once for every slice.
+ *
+ * Each setBits batch becomes one run in each slice bucket it touches. A run holds the positions of the bits
+ * within the slice sorted, each shifted left by one with the state in the lowest bit.
+ * Runs are applied to their slice in the order they were written, so a later batch overwrites an earlier one
+ * like with direct writes, and within a batch the bits are in no particular order like with setBits.
+ * When the runs held in memory grow over the spill threshold, they are moved to an EncryptedSpillFile,
+ * which is removed on close().
+ **/
+class HopRouter
+    implements LargeBitfield, AutoCloseable
+{
+    private static final int SPILL_READ_ENTRIES = 64*1024;
+
+    /**
+     * Run of one batch in one slice, either in memory or at spillPosition of the spill file.
+     **/
+    private static class Run
+    {
+	private long[] entries;
+	private final int count;
+	private long spillPosition = -1l;
+	private Run(long[] entries)
+	{
+	    this.entries = entries;
+	    this.count = entries.length;
+	}
+    }
+
+    private final long innerDataSize;
+    private final long sliceSize;
+    private final FileSalt fileSalt;
+    private final List<List<Run>> buckets = new ArrayList<List<Run>>();
+    private final List<Run> memoryRuns = new ArrayList<Run>(); // runs not spilled, in the order they were written
+    private final long spillThresholdEntries;
+    private final SecureRandom random;
+    private long memoryEntries = 0l;
+    private EncryptedSpillFile spillFile = null;
+
+    /**
+     * @param innerDataSize size of the data area the slices are of, in bytes
+     * @param sliceSize size of a slice, in bytes
+     * @param fileSalt salt given to the writers
+     * @param random source of the spill keys
+     **/
+    HopRouter(long innerDataSize, long sliceSize, FileSalt fileSalt, SecureRandom random)
+    {
+	this(innerDataSize, sliceSize, fileSalt, random, Runtime.getRuntime().maxMemory() / 16 / Long.BYTES);
+    }
+
+    HopRouter(long innerDataSize, long sliceSize, FileSalt fileSalt, SecureRandom random, long spillThresholdEntries)
+    {
+	this.innerDataSize = innerDataSize;
+	this.sliceSize = sliceSize;
+	this.fileSalt = fileSalt;
+	this.random = random;
+	this.spillThresholdEntries = spillThresholdEntries;
+	long sliceCount = (innerDataSize + sliceSize - 1) / sliceSize;
+	for(long i = 0; i < sliceCount; i++) {
+	    buckets.add(new ArrayList<Run>());
+	}
+    }
+
+    public FileSalt getFileSalt()
+    {
+	return fileSalt;
+    }
+
+    /**
+     * The writers only write, so there is nothing to read.
+     *
+     * @throws IllegalStateException always
+     **/
+    public boolean getBit(long address)
+    {
+	throw new IllegalStateException("tried to read a bit being routed.");
+    }
+
+    public void setBit(long address, boolean state)
+	throws IOException
+    {
+	setBits(new long[] { address }, new long[] { state ? 1l : 0l }, 1);
+    }
+
+    /**
+     * Buckets the bits by slice as one run in each slice they land in.
+     **/
+    public synchronized void setBits(long[] addresses, long[] states, int count)
+	throws IOException
+    {
+	int[] counts = new int[buckets.size()];
+	for(int i = 0; i < count; i++) {
+	    counts[getSliceIndex(addresses[i])]++;
+	}
+	long[][] runs = new long[buckets.size()][];
+	for(int slice = 0; slice < runs.length; slice++) {
+	    if(0 != counts[slice]) {
+		runs[slice] = new long[counts[slice]];
+		counts[slice] = 0;
+	    }
+	}
+	for(int i = 0; i < count; i++) {
+	    long relativeAddress = Math.floorMod(addresses[i], innerDataSize);
+	    int slice = Math.toIntExact(relativeAddress / sliceSize);
+	    long position = relativeAddress - slice * sliceSize;
+	    long state = (states[i / Long.SIZE] >>> (i % Long.SIZE)) & 1l;
+	    runs[slice][counts[slice]++] = (position << 1) | state;
+	}
+	for(int slice = 0; slice < runs.length; slice++) {
+	    if(null != runs[slice]) {
+		Arrays.sort(runs[slice]);
+		Run run = new Run(runs[slice]);
+		buckets.get(slice).add(run);
+		memoryRuns.add(run);
+		memoryEntries += runs[slice].length;
+	    }
+	}
+	if(memoryEntries > spillThresholdEntries) {
+	    spill();
+	}
+    }
+
+    private int getSliceIndex(long address)
+    {
+	return Math.toIntExact(Math.floorMod(address, innerDataSize) / sliceSize);
+    }
+
+    /**
+     * Moves all runs held in memory to the spill file.
+     **/
+    private void spill()
+	throws IOException
+    {
+	if(null == spillFile) {
+	    spillFile = new EncryptedSpillFile("hoprouter", random);
+	}
+	for(Run run : memoryRuns) {
+	    if(null != run.entries) {
+		ByteBuffer buffer = ByteBuffer.allocate(run.count * Long.BYTES);
+		buffer.asLongBuffer().put(run.entries);
+		run.spillPosition = spillFile.append(buffer.array(), 0, buffer.capacity());
+		Arrays.fill(run.entries, 0l);
+		run.entries = null;
+	    }
+	}
+	memoryRuns.clear();
+	memoryEntries = 0l;
+    }
+
+    /**
+     * Applies the runs of the slice starting at windowStart to it in the order they were written.
+     *
+     * @param windowStart start of the slice, a multiple of the slice size
+     * @param slice the slice
+     **/
+    synchronized void apply(long windowStart, ProtectedFileSlice slice)
+	throws IOException
+    {
+	List<Run> bucket = buckets.get(Math.toIntExact(windowStart / sliceSize));
+	long[] spilled = null;
+	byte[] spillBytes = null;
+	try {
+	    for(Run run : bucket) {
+		if(null != run.entries) {
+		    slice.applyRun(run.entries, 0, run.count);
+		    Arrays.fill(run.entries, 0l);
+		    run.entries = null;
+		    memoryEntries -= run.count;
+		    continue;
+		}
+		if(null == spilled) {
+		    spilled = new long[SPILL_READ_ENTRIES];
+		    spillBytes = new byte[SPILL_READ_ENTRIES * Long.BYTES];
+		}
+		for(int done = 0; done < run.count; ) {
+		    int amount = Math.min(SPILL_READ_ENTRIES, run.count - done);
+		    spillFile.read(run.spillPosition + (long)done * Long.BYTES, spillBytes, 0, amount * Long.BYTES);
+		    ByteBuffer.wrap(spillBytes, 0, amount * Long.BYTES).asLongBuffer().get(spilled, 0, amount);
+		    slice.applyRun(spilled, 0, amount);
+		    done += amount;
+		}
+	    }
+	    bucket.clear();
+	}
+	finally {
+	    if(null != spilled) {
+		Arrays.fill(spilled, 0l);
+		Arrays.fill(spillBytes, (byte)0);
+	    }
+	}
+    }
+
+    /**
+     * Zeroes the runs held in memory and removes the spill file.
+     **/
+    public synchronized void close()
+	throws IOException
+    {
+	for(List<Run> bucket : buckets) {
+	    for(Run run : bucket) {
+		if(null != run.entries) {
+		    Arrays.fill(run.entries, 0l);
+		}
+	    }
+	    bucket.clear();
+	}
+	memoryRuns.clear();
+	memoryEntries = 0l;
+	if(null != spillFile) {
+	    spillFile.close();
+	    spillFile = null;
+	}
+    }
+
+    /**
+     * Testing methods
+     **/
+
+    /**
+     * Writes batches of random bits, some of them over bits of earlier batches, into slices directly
+     * and through a HopRouter, and compares the slices.
+     *
+     * @param dataSize size of the data area in bytes
+     * @param sliceSize size of a slice in bytes
+     * @param batches amount of setBits batches
+     * @param spillThresholdEntries entries the router holds in memory before spilling
+     * @returns true if the routed slices are the same as the directly written ones
+     **/
+    private static boolean compareToDirectWrites(long dataSize, long sliceSize, int batches, long spillThresholdEntries)
+    {
+	Random random = new Random(dataSize);
+	final int batchSize = 100;
+	long[][] addresses = new long[batches][batchSize];
+	long[][] states = new long[batches][(batchSize + Long.SIZE - 1) / Long.SIZE];
+	for(int batch = 0; batch < batches; batch++) {
+	    Set<Long> used = new HashSet<Long>(); // a batch sets each bit once, its order being undefined
+	    for(int i = 0; i < batchSize; ) {
+		long address = random.nextLong();
+		if(!used.add(Math.floorMod(address, dataSize))) {
+		    continue;
+		}
+		addresses[batch][i] = address;
+		if(random.nextBoolean()) {
+		    states[batch][i / Long.SIZE] |= 1l << (i % Long.SIZE);
+		}
+		i++;
+	    }
+	}
+	try(FileSalt salt = new FileSalt(ProtectedFileSlice.seededRandom(0l));
+	    HopRouter router = new HopRouter(dataSize, sliceSize, salt, new SecureRandom(), spillThresholdEntries)) {
+	    for(int batch = 0; batch < batches; batch++) {
+		router.setBits(addresses[batch], states[batch], batchSize);
+	    }
+	    boolean spilled = null != router.spillFile;
+	    ByteArrayOutputStream direct = new ByteArrayOutputStream();
+	    ByteArrayOutputStream routed = new ByteArrayOutputStream();
+	    for(long start = 0; start < dataSize; start += sliceSize) {
+		long end = Math.min(start + sliceSize, dataSize);
+		try(ProtectedFileSlice slice = new ProtectedFileSlice(ProtectedFileSlice.seededRandom(start), direct, start, end, dataSize, salt)) {
+		    for(int batch = 0; batch < batches; batch++) {
+			slice.setBits(addresses[batch], states[batch], batchSize);
+		    }
+		}
+		try(ProtectedFileSlice slice = new ProtectedFileSlice(ProtectedFileSlice.seededRandom(start), routed, start, end, dataSize, salt)) {
+		    router.apply(start, slice);
+		}
+	    }
+	    boolean result = Arrays.equals(direct.toByteArray(), routed.toByteArray());
+	    System.out.println(""+batches+" batches into "+((dataSize + sliceSize - 1) / sliceSize)+" slices"
+			       +(spilled ? " with a spill" : "")+": "+(result ? "same" : "different"));
+	    return result;
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return false;
+	}
+	finally {
+	    SliceBuffer.clearPool();
+	}
+    }
+
+    /**
+     * main method for testing.
+     *
+     * runs tests and reports their success rate.
+     **/
+    public static void main(String[] args)
+    {
+	int successes = 0;
+	int trials = 0;
+
+	trials++;
+	if(compareToDirectWrites(10000l, 3000l, 50, Long.MAX_VALUE)) successes++;
+
+	trials++;
+	if(compareToDirectWrites(10000l, 3000l, 50, 1000l)) successes++;
+
+	trials++;
+	if(compareToDirectWrites(100l, 7l, 20, 100l)) successes++;
+
+	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
+    }
+}
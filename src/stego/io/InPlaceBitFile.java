@@ -0,0 +1,380 @@
+package stego.io;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.function.Consumer;
+import stego.crypto.*;
+import stego.util.CommandLineInterface;
+
+/**
+ * Inner bitfield of an existing bitfile, changed in place with the key its data area already has.
+ *
+ * A bit is written by deriving the mask of the 16 byte block that holds it and writing the bit xored with its mask bit
+ * into the bitfile through a {@link BitFile}, whose backend reads and writes the file with positional calls or maps it.
+ * A small payload therefore touches only the blocks of its hops, instead of the whole bitfile being read and written
+ * into a new file like ProtectedFileSlice.write does. The outer metadata, the salts and the passcode of the bitfile stay as they are.
+ *
+ * Because the key stays the same, anyone holding copies of the bitfile from before and after the change
+ * sees which blocks changed, which a rewrite with a new key does not show.
+ * The bits address the bitfile like ReadonlyBitFile reads them, so the written files are found in the bitfile afterwards.
+ **/
+public class InPlaceBitFile
+    implements LargeBitfield, AutoCloseable
+{
+    /**
+     * Position of the inner area in the bitfile, after the outer metadata and the outer salt.
+     **/
+    private static final long INNER_OFFSET = Metadata.Field.size() + FileSalt.SIZE;
+    private static final int BLOCK_SIZE = CipherTrail.AES256_BLOCK_SIZE_BYTES;
+
+    private final BitFile bitfile;
+    private final CipherTrail trail;
+    private final FileSalt innerFileSalt;
+    private final long innerLength;
+    private final long dataLength;
+
+    private InPlaceBitFile(BitFile bitfile, CipherTrail trail, long innerLength)
+	throws IOException
+    {
+	this.bitfile = bitfile;
+	this.trail = trail;
+	this.innerLength = innerLength;
+	this.dataLength = innerLength - FileSalt.SIZE;
+	byte[] salt = new byte[FileSalt.SIZE];
+	readFully(INNER_OFFSET, salt, salt.length);
+	trail.xorMask(0l, salt, 0, salt.length);
+	this.innerFileSalt = new FileSalt(salt);
+    }
+
+    /**
+     * Opens the inner bitfield of file for changing in place with the CHANNEL backend.
+     *
+     * @param file the bitfile
+     * @param passcode the passcode of the bitfile
+     * @param random source of the start points of the nonce search
+     * @param keyring the keyring or null to always search
+     * @return the inner bitfield
+     * @throws IOException if reading the bitfile fails
+     **/
+    public static InPlaceBitFile open(File file, char[] passcode, SecureRandom random, Keyring keyring)
+	throws IOException
+    {
+	return open(file, passcode, random, keyring, BitFile.Backend.CHANNEL);
+    }
+
+    /**
+     * Opens the inner bitfield of file for changing in place.
+     *
+     * @param file the bitfile
+     * @param passcode the passcode of the bitfile
+     * @param random source of the start points of the nonce search
+     * @param keyring the keyring or null to always search
+     * @param backend the implementation the bitfile is read and written with
+     * @return the inner bitfield
+     * @throws IOException if reading the bitfile fails
+     **/
+    public static InPlaceBitFile open(File file, char[] passcode, SecureRandom random, Keyring keyring, BitFile.Backend backend)
+	throws IOException
+    {
+	BitFile bitfile = BitFile.open(file, backend);
+	try {
+	    byte[] outerSalt = new byte[FileSalt.SIZE];
+	    try(FileInputStream fis = new FileInputStream(file);
+		Metadata metadata = Metadata.read(fis)) {
+		if(fis.read(outerSalt) < outerSalt.length) {
+		    throw new EOFException("bitfile "+file+" ends before its salt.");
+		}
+		try(FileSalt filesalt = new FileSalt(outerSalt)) {
+		    try(Metadata key = metadata.open(filesalt, passcode, random, keyring);
+			GuardedByteArray guard = key.getKey()) {
+			return new InPlaceBitFile(bitfile, new CipherTrail(filesalt, guard.bytes), file.length() - INNER_OFFSET);
+		    }
+		}
+	    }
+	    finally {
+		Arrays.fill(outerSalt, (byte)0);
+	    }
+	}
+	catch(IOException | RuntimeException e) {
+	    bitfile.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Writes the writers into the inner bitfield of file in place with the CHANNEL backend.
+     *
+     * @param file the bitfile
+     * @param passcode the passcode of the bitfile
+     * @param random source of the start points of the nonce search
+     * @param keyring the keyring or null to always search, into which the nonces of the FileHiders are recorded
+     * @param writers collection of writers who should write their BaseStegoOutputStreams into the bitfile
+     * @throws IOException if reading or writing the bitfile fails
+     **/
+    public static void update(File file, char[] passcode, SecureRandom random, Keyring keyring,
+			      Collection<? extends Consumer<? super LargeBitfield>> writers)
+	throws IOException
+    {
+	update(file, passcode, random, keyring, BitFile.Backend.CHANNEL, writers);
+    }
+
+    /**
+     * Writes the writers into the inner bitfield of file in place.
+     *
+     * @param file the bitfile
+     * @param passcode the passcode of the bitfile
+     * @param random source of the start points of the nonce search
+     * @param keyring the keyring or null to always search, into which the nonces of the FileHiders are recorded
+     * @param backend the implementation the bitfile is read and written with
+     * @param writers collection of writers who should write their BaseStegoOutputStreams into the bitfile
+     * @throws IOException if reading or writing the bitfile fails
+     **/
+    public static void update(File file, char[] passcode, SecureRandom random, Keyring keyring, BitFile.Backend backend,
+			      Collection<? extends Consumer<? super LargeBitfield>> writers)
+	throws IOException
+    {
+	try(InPlaceBitFile target = open(file, passcode, random, keyring, backend)) {
+	    for(Consumer<? super LargeBitfield> currentTarget : writers) {
+		CommandLineInterface.showProgress();
+		try {
+		    currentTarget.accept(target);
+		}
+		catch(UncheckedIOException e) {
+		    throw new IOException(e);
+		}
+	    }
+	    if(null != keyring) {
+		for(Consumer<? super LargeBitfield> currentTarget : writers) {
+		    if(currentTarget instanceof FileHider) {
+			((FileHider)currentTarget).record(keyring, target.getFileSalt());
+		    }
+		}
+		keyring.save();
+	    }
+	}
+    }
+
+    public FileSalt getFileSalt()
+    {
+	return innerFileSalt;
+    }
+
+    /**
+     * Makes the target address relative to the data area, like ReadonlyBitFile does.
+     **/
+    private long getRelative(long address)
+    {
+	return Math.floorMod(address, dataLength);
+    }
+
+    /**
+     * @return number of the block holding the data byte of the relative address
+     **/
+    private static long getBlockNumber(long relativeAddress)
+    {
+	return (FileSalt.SIZE + (relativeAddress >> 3)) / BLOCK_SIZE;
+    }
+
+    /**
+     * @return address of the bit of the inner area at innerBytePosition in the bitfile
+     **/
+    private static long getFileAddress(long innerBytePosition, long bit)
+    {
+	return ((INNER_OFFSET + innerBytePosition) << 3) | bit;
+    }
+
+    public synchronized boolean getBit(long address)
+	throws IOException
+    {
+	long relativeAddress = getRelative(address);
+	long innerBytePosition = FileSalt.SIZE + (relativeAddress >> 3);
+	byte[] mask = new byte[1];
+	trail.xorMask(innerBytePosition, mask, 0, 1);
+	int bitMask = 1 << (relativeAddress & 0x7);
+	boolean result = bitfile.getBit(getFileAddress(innerBytePosition, relativeAddress & 0x7)) != (0 != (mask[0] & bitMask));
+	mask[0] = 0;
+	return result;
+    }
+
+    public void setBit(long address, boolean state)
+	throws IOException
+    {
+	setBits(new long[] { address }, new long[] { state ? 1l : 0l }, 1);
+    }
+
+    /**
+     * Writes the bits block by block, sorted so that the mask of each touched block is derived once per call,
+     * and gives them to the bitfile in one setBits.
+     **/
+    public synchronized void setBits(long[] addresses, long[] states, int count)
+	throws IOException
+    {
+	long[] entries = new long[count];
+	long[] fileAddresses = new long[count];
+	long[] fileStates = new long[(count + Long.SIZE - 1) / Long.SIZE];
+	byte[] mask = new byte[BLOCK_SIZE];
+	try {
+	    for(int i = 0; i < count; i++) {
+		long state = (states[i / Long.SIZE] >>> (i % Long.SIZE)) & 1l;
+		entries[i] = (getRelative(addresses[i]) << 1) | state;
+	    }
+	    Arrays.sort(entries);
+	    for(int i = 0; i < count; ) {
+		long blockNumber = getBlockNumber(entries[i] >>> 1);
+		Arrays.fill(mask, (byte)0);
+		trail.xorMask(blockNumber*BLOCK_SIZE, mask, 0, getBlockLength(blockNumber));
+		for(; (i < count) && (getBlockNumber(entries[i] >>> 1) == blockNumber); i++) {
+		    long relativeAddress = entries[i] >>> 1;
+		    long innerBytePosition = FileSalt.SIZE + (relativeAddress >> 3);
+		    int bytePosition = Math.toIntExact(innerBytePosition - blockNumber*BLOCK_SIZE);
+		    long maskBit = (mask[bytePosition] >>> (relativeAddress & 0x7)) & 1l;
+		    fileAddresses[i] = getFileAddress(innerBytePosition, relativeAddress & 0x7);
+		    fileStates[i / Long.SIZE] |= ((entries[i] & 1l) ^ maskBit) << (i % Long.SIZE);
+		}
+	    }
+	    bitfile.setBits(fileAddresses, fileStates, count);
+	}
+	finally {
+	    Arrays.fill(entries, 0l);
+	    Arrays.fill(fileStates, 0l);
+	    Arrays.fill(mask, (byte)0);
+	}
+    }
+
+    private int getBlockLength(long blockNumber)
+    {
+	return (int)Math.min(BLOCK_SIZE, innerLength - blockNumber*BLOCK_SIZE);
+    }
+
+    /**
+     * Reads length ciphertext bytes of the bitfile from position into target bit by bit.
+     **/
+    private void readFully(long position, byte[] target, int length)
+	throws IOException
+    {
+	for(int i = 0; i < length; i++) {
+	    int current = 0;
+	    for(int bit = 0; bit < 8; bit++) {
+		if(bitfile.getBit(((position + i) << 3) | bit)) {
+		    current |= 1 << bit;
+		}
+	    }
+	    target[i] = (byte)current;
+	}
+    }
+
+    /**
+     * Closes the bitfile, which forces the changed bits to the storage device.
+     **/
+    public synchronized void close()
+	throws IOException
+    {
+	try {
+	    bitfile.close();
+	}
+	finally {
+	    innerFileSalt.close();
+	}
+    }
+
+    /**
+     * Testing methods
+     **/
+
+    /**
+     * Sets and clears random bits of a new bitfile in place and compares every changed bit, and bits next to them
+     * that were not changed, to what ReadonlyBitFile reads from the bitfile afterwards.
+     *
+     * @param bitfile file to create the bitfile into
+     * @param size size of the data of the bitfile in bytes
+     * @param count amount of bits to change
+     * @param backend the implementation the bits are changed with
+     * @returns amount of bits ReadonlyBitFile reads differently than expected, or -1 if the test failed otherwise
+     **/
+    private static int compareToReadonlyBitFile(File bitfile, long size, int count, BitFile.Backend backend)
+    {
+	final char[] passcode = "in place".toCharArray();
+	Random random = new Random(1l);
+	try {
+	    try(FileOutputStream fos = new FileOutputStream(bitfile)) {
+		ProtectedFileSlice.createAndWrite(size, fos, passcode, 0, new SecureRandom(), Arrays.asList()).close();
+	    }
+	    long[] addresses = new long[count];
+	    long[] states = new long[(count + Long.SIZE - 1) / Long.SIZE];
+	    List<Long> untouched = new ArrayList<Long>();
+	    try(InPlaceBitFile target = open(bitfile, passcode, new SecureRandom(), null, backend)) {
+		Set<Long> used = new HashSet<Long>();
+		for(int i = 0; i < count; ) {
+		    long address = random.nextLong();
+		    if(!used.add(target.getRelative(address))) {
+			continue;
+		    }
+		    addresses[i] = address;
+		    if(random.nextBoolean()) {
+			states[i / Long.SIZE] |= 1l << (i % Long.SIZE);
+		    }
+		    i++;
+		}
+		for(long address : addresses) {
+		    if(!used.contains(target.getRelative(address + 1))) {
+			untouched.add(address + 1);
+		    }
+		}
+	    }
+	    boolean[] untouchedBefore = new boolean[untouched.size()];
+	    try(ReadonlyBitFile before = ReadonlyBitFile.read(bitfile, passcode, new SecureRandom())) {
+		for(int i = 0; i < untouchedBefore.length; i++) {
+		    untouchedBefore[i] = before.getBit(untouched.get(i));
+		}
+	    }
+	    try(InPlaceBitFile target = open(bitfile, passcode, new SecureRandom(), null, backend)) {
+		target.setBits(addresses, states, count);
+	    }
+	    int mismatches = 0;
+	    try(ReadonlyBitFile after = ReadonlyBitFile.read(bitfile, passcode, new SecureRandom())) {
+		for(int i = 0; i < count; i++) {
+		    if(after.getBit(addresses[i]) != (0 != (states[i / Long.SIZE] & (1l << (i % Long.SIZE))))) {
+			mismatches++;
+		    }
+		}
+		for(int i = 0; i < untouchedBefore.length; i++) {
+		    if(after.getBit(untouched.get(i)) != untouchedBefore[i]) {
+			mismatches++;
+		    }
+		}
+	    }
+	    System.out.println(""+backend+": "+count+" bits changed and "+untouched.size()+" untouched: "+mismatches+" mismatches.");
+	    return mismatches;
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return -1;
+	}
+	finally {
+	    bitfile.delete();
+	}
+    }
+
+    /**
+     * main method for testing.
+     *
+     * runs tests and reports their success rate.
+     **/
+    public static void main(String[] args)
+	throws IOException
+    {
+	int successes = 0;
+	int trials = 0;
+
+	for(BitFile.Backend backend : BitFile.Backend.values()) {
+	    trials++;
+	    if(0 == compareToReadonlyBitFile(File.createTempFile("inplace", ".bitfile"), 400003l, 20000, backend)) successes++;
+
+	    trials++;
+	    if(0 == compareToReadonlyBitFile(File.createTempFile("inplace", ".bitfile"), 1000l, 100, backend)) successes++;
+	}
+
+	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
+    }
+}
@@ -0,0 +1,214 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import stego.crypto.*;
+
+/**
+ * Local encrypted keyring of the nonces of found metadata, so that reading the same file with the same passcode again
+ * needs no nonce search, only the key derivation of the recorded nonce.
+ *
+ * The nonce is recorded instead of the decrypted metadata, so that a hit is confirmed by decrypting the metadata
+ * in the bitfile with it. A file written again with the same passcode into a bitfile of the same salt
+ * then gives its current metadata, or no hit if its nonce changed, instead of the key of the old file.
+ *
+ * Entries are looked up by an HMAC-SHA256 of the salt of the bitfile and the passcode under a random lookup key
+ * of the keyring, so neither the passcodes nor the bitfiles they open are in the keyring, even when it is decrypted.
+ * The file is an EncryptedStateFile of the keyring passphrase, holding the lookup key and the entries,
+ * each of which is the lookup value, the length of the nonce and the nonce.
+ **/
+public class Keyring
+    implements AutoCloseable
+{
+    private static final String LOOKUP_ALGORITHM = "HmacSHA256";
+    private static final int LOOKUP_SIZE = 32;
+
+    private final File file;
+    private final char[] passphrase;
+    private final byte[] lookupKey = new byte[LOOKUP_SIZE];
+    private final Map<ByteBuffer, byte[]> entries = new HashMap<ByteBuffer, byte[]>();
+
+    private Keyring(File file, char[] passphrase)
+    {
+	this.file = file;
+	this.passphrase = passphrase.clone();
+    }
+
+    /**
+     * Opens the keyring in file, or a new empty keyring if file does not exist.
+     *
+     * @param file the keyring file
+     * @param passphrase passphrase of the keyring, which is not modified
+     * @return the keyring
+     * @throws IOException if file exists but is not a keyring of this passphrase, or reading it fails
+     **/
+    public static Keyring open(File file, char[] passphrase)
+	throws IOException
+    {
+	Keyring result = new Keyring(file, passphrase);
+	try {
+	    if(file.exists()) {
+		result.load();
+	    } else {
+		new SecureRandom().nextBytes(result.lookupKey);
+	    }
+	}
+	catch(IOException | RuntimeException e) {
+	    result.close();
+	    throw e;
+	}
+	return result;
+    }
+
+    private void load()
+	throws IOException
+    {
+	byte[] body = EncryptedStateFile.read(file, passphrase);
+	try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+	    in.readFully(lookupKey);
+	    int entryCount = in.readInt();
+	    for(int i = 0; i < entryCount; i++) {
+		byte[] lookup = new byte[LOOKUP_SIZE];
+		in.readFully(lookup);
+		int nonceLength = in.readInt();
+		if((nonceLength < 0) || (nonceLength > in.available())) {
+		    throw new IOException("keyring "+file+" has an entry of "+nonceLength+" nonce bytes, it is not a keyring of nonces.");
+		}
+		byte[] nonce = new byte[nonceLength];
+		in.readFully(nonce);
+		entries.put(ByteBuffer.wrap(lookup), nonce);
+	    }
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	}
+    }
+
+    private ByteBuffer lookup(FileSalt filesalt, char[] passcode)
+    {
+	byte[] passcodeBytes = new String(passcode).getBytes(StandardCharsets.UTF_8);
+	try {
+	    Mac mac = Mac.getInstance(LOOKUP_ALGORITHM);
+	    mac.init(new SecretKeySpec(lookupKey, LOOKUP_ALGORITHM));
+	    mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(filesalt.bytes.length).array());
+	    mac.update(filesalt.bytes);
+	    mac.update(passcodeBytes);
+	    return ByteBuffer.wrap(mac.doFinal());
+	}
+	catch(GeneralSecurityException gse) {
+	    throw new IllegalStateException(gse);
+	}
+	finally {
+	    Arrays.fill(passcodeBytes, (byte)0);
+	}
+    }
+
+    /**
+     * @param filesalt salt of the bitfile
+     * @param passcode the passcode, which is not modified
+     * @return a new copy of the nonce recorded for passcode in the bitfile, or null if there is none. Caller clears it.
+     **/
+    public synchronized byte[] getNonce(FileSalt filesalt, char[] passcode)
+    {
+	byte[] nonce = entries.get(lookup(filesalt, passcode));
+	return (null == nonce) ? null : nonce.clone();
+    }
+
+    /**
+     * Records the nonce metadata was decrypted with for passcode in the bitfile. The keyring file is changed only by save().
+     * Metadata whose nonce is not known is not recorded.
+     *
+     * @param filesalt salt of the bitfile
+     * @param passcode the passcode, which is not modified
+     * @param metadata the decrypted metadata, whose nonce is copied
+     **/
+    public synchronized void put(FileSalt filesalt, char[] passcode, Metadata metadata)
+    {
+	byte[] nonce = metadata.getNonceCopy();
+	if(null == nonce) {
+	    return;
+	}
+	try {
+	    putNonce(filesalt, passcode, nonce);
+	}
+	finally {
+	    Arrays.fill(nonce, (byte)0);
+	}
+    }
+
+    /**
+     * Records the nonce the metadata of passcode is written with in the bitfile, replacing the entry of an earlier file
+     * of the same passcode. The keyring file is changed only by save().
+     *
+     * @param filesalt salt of the bitfile
+     * @param passcode the passcode, which is not modified
+     * @param nonce the nonce, which is copied
+     **/
+    public synchronized void putNonce(FileSalt filesalt, char[] passcode, byte[] nonce)
+    {
+	byte[] previous = entries.put(lookup(filesalt, passcode), nonce.clone());
+	if(null != previous) {
+	    Arrays.fill(previous, (byte)0);
+	}
+    }
+
+    /**
+     * Removes the entry of passcode in the bitfile, if there is one. The keyring file is changed only by save().
+     *
+     * @param filesalt salt of the bitfile
+     * @param passcode the passcode, which is not modified
+     **/
+    public synchronized void remove(FileSalt filesalt, char[] passcode)
+    {
+	byte[] previous = entries.remove(lookup(filesalt, passcode));
+	if(null != previous) {
+	    Arrays.fill(previous, (byte)0);
+	}
+    }
+
+    /**
+     * Encrypts the keyring with a new salt and replaces the file with it.
+     *
+     * @throws IOException if writing the file fails
+     **/
+    public synchronized void save()
+	throws IOException
+    {
+	ByteArrayOutputStream plain = new ByteArrayOutputStream();
+	try(DataOutputStream out = new DataOutputStream(plain)) {
+	    out.write(lookupKey);
+	    out.writeInt(entries.size());
+	    for(Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+		out.write(entry.getKey().array());
+		out.writeInt(entry.getValue().length);
+		out.write(entry.getValue());
+	    }
+	}
+	byte[] body = plain.toByteArray();
+	try {
+	    EncryptedStateFile.write(file, passphrase, body);
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	}
+    }
+
+    /**
+     * Zeroes the passphrase, lookup key and nonces held in memory. The file is not saved.
+     **/
+    public synchronized void close()
+    {
+	Arrays.fill(passphrase, ' ');
+	Arrays.fill(lookupKey, (byte)0);
+	for(byte[] nonce : entries.values()) {
+	    Arrays.fill(nonce, (byte)0);
+	}
+	entries.clear();
+    }
+}
@@ -1,6 +1,9 @@
 package stego.io;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import stego.crypto.FileSalt;
 
 public interface LargeBitfield
@@ -23,6 +26,40 @@ public interface LargeBitfield
     public void setBit(long address, boolean state)
 	throws IOException;
 
+    /**
+     * Writes count bits, the state of bit i into addresses[i], like setBit for each of them.
+     * The bits are written in no particular order, so of several bits to the same address any one may remain.
+     *
+     * @param addresses target addresses in bits
+     * @param states the states as a bitset, the state of bit i in bit i%64 of states[i/64]
+     * @param count amount of bits
+     **/
+    public default void setBits(long[] addresses, long[] states, int count)
+	throws IOException
+    {
+	List<IOException> ioeList
+	    = IntStream.range(0, count)
+	    .parallel()
+	    .mapToObj(bitNumber -> {
+		    try {
+			setBit(addresses[bitNumber], 0 != (states[bitNumber / Long.SIZE] & (1l << (bitNumber % Long.SIZE))));
+		    }
+		    catch(IOException ioe) {
+			return ioe;
+		    }
+		    return null;
+		})
+	    .filter(e -> null != e)
+	    .collect(Collectors.toList());
+	if(!ioeList.isEmpty()) {
+	    IOException firstException = ioeList.remove(0);
+	    while(!ioeList.isEmpty()) {
+		firstException.addSuppressed(ioeList.remove(0));
+	    }
+	    throw firstException;
+	}
+    }
+
     /**
      * Gets the salt bytes on the tail.
      *
@@ -1,12 +1,20 @@
 package stego.io;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 /**
  * @author syy 2022-06-25
  *
  * Lock map class for locking selected resources. Used for locking the bytes of files.
+ *
+ * Targets are spread by hash over stripes, each with its own lock, so threads locking different targets
+ * seldom meet on the same lock. A thread waiting for a target parks on the condition of its stripe
+ * until the target is released, instead of spinning. Several targets can be locked at once with lockAll,
+ * like RandomAccessBitFile.setBits locks the bytes of a batch, and counters of acquisitions, contention and waiting time are kept.
  **/
 
 
@@ -20,26 +28,109 @@ public class LockMap<T>
 	implements AutoCloseable
     {
 	private final T target;
+	private final List<T> targets;
 	private final Thread me;
-	private Lock(T target)
+	private Lock(T target, List<T> targets)
 	{
 	    this.target = target;
+	    this.targets = targets;
 	    this.me = Thread.currentThread();
 	}
 	public void close()
 	    throws RuntimeException
 	{
-	    if(closingAll) return;
-	    if(!lockMap.remove(target, me)) {
-		throw new IllegalStateException("lock mismatch with "+target);
+	    if(null == targets) {
+		if(!release(target, me)) {
+		    throw new IllegalStateException("lock mismatch with "+target);
+		}
+		return;
+	    }
+	    RuntimeException mismatch = null;
+	    for(T target : targets) {
+		if(!release(target, me) && (null == mismatch)) {
+		    mismatch = new IllegalStateException("lock mismatch with "+target);
+		}
+	    }
+	    if(null != mismatch) {
+		throw mismatch;
 	    }
 	}
     }
-    private Map<T, Thread> lockMap = Collections.synchronizedMap(new HashMap<T, Thread>());
-    private boolean closingAll = false;
+
+    /**
+     * Targets of one stripe, guarded by its lock.
+     **/
+    private class Stripe
+    {
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final Map<T, Thread> held = new HashMap<T, Thread>();
+	private int waiters = 0;
+    }
+
+    private final List<Stripe> stripes;
+    private final int stripeMask;
+    private volatile boolean closingAll = false;
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder contentionCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * Creates a lock map with four stripes for each processor, but at least 16.
+     **/
+    public LockMap()
+    {
+	this(4*Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripeCount minimum amount of stripes, rounded up to a power of two
+     **/
+    public LockMap(int stripeCount)
+    {
+	int count = Integer.highestOneBit(Math.max(16, stripeCount) - 1) << 1;
+	this.stripes = new ArrayList<Stripe>(count);
+	for(int i = 0; i < count; i++) {
+	    stripes.add(new Stripe());
+	}
+	this.stripeMask = count - 1;
+    }
+
+    private int getStripeIndex(T target)
+    {
+	int hash = target.hashCode();
+	return (hash ^ (hash >>> 16)) & stripeMask;
+    }
+
+    private Stripe getStripe(T target)
+    {
+	return stripes.get(getStripeIndex(target));
+    }
+
+    /**
+     * Releases target held by owner and wakes the threads waiting on its stripe.
+     *
+     * @return false if owner did not hold target, which is expected only after close() of this LockMap
+     **/
+    private boolean release(T target, Thread owner)
+    {
+	Stripe stripe = getStripe(target);
+	stripe.lock.lock();
+	try {
+	    boolean isHeld = stripe.held.remove(target, owner);
+	    if((stripe.waiters > 0) || closingAll) {
+		stripe.released.signalAll();
+	    }
+	    return isHeld || closingAll;
+	}
+	finally {
+	    stripe.lock.unlock();
+	}
+    }
 
     /**
      * Locks target T until close() of returned Lock is called. Intended to be used in try-with-resources.
+     * Only the stripe of target is locked, and a thread waiting for target parks on it until target is released.
      *
      * @param target the target resource to be locked. T.equals MUST be implemented properly.
      * @returns Lock for target to be held until end of operation OR null if close() has been called before end of locking.
@@ -48,34 +139,166 @@ public class LockMap<T>
     public Lock lock(T target)
     {
 	if(null == target) return null;
-	
 	final Thread me = Thread.currentThread();
+	Stripe stripe = getStripe(target);
+	long waitStart = 0l;
+	stripe.lock.lock();
+	try {
+	    while(true) {
+		if(closingAll) return null;
+		Thread owner = stripe.held.putIfAbsent(target, me);
+		if(null == owner) {
+		    break;
+		}
+		if(me.equals(owner)) {
+		    throw new IllegalStateException("tried to lock multiple times "+target);
+		}
+		if(0l == waitStart) {
+		    waitStart = System.nanoTime();
+		    contentionCount.increment();
+		}
+		stripe.waiters++;
+		try {
+		    stripe.released.awaitUninterruptibly();
+		}
+		finally {
+		    stripe.waiters--;
+		}
+	    }
+	}
+	finally {
+	    stripe.lock.unlock();
+	}
+	acquireCount.increment();
+	if(0l != waitStart) {
+	    waitNanos.add(System.nanoTime() - waitStart);
+	}
+	return new Lock(target, null);
+    }
 
+    /**
+     * Locks all targets at once until close() of returned Lock is called. Intended to be used in try-with-resources.
+     * None of the targets is held while waiting for the others, and stripes are always taken in the same order,
+     * so threads locking overlapping sets do not deadlock.
+     *
+     * @param targets the target resources to be locked, for example the pages a batch touches
+     * @returns Lock for targets to be held until end of operation OR null if close() has been called before end of locking.
+     * @throws IllegalStateException if one tries to lock a target this thread holds already.
+     **/
+    public Lock lockAll(Collection<? extends T> targets)
+    {
 	if(closingAll) return null;
-
-	for(; (null != lockMap.putIfAbsent(target,me)) && !closingAll; Thread.yield()) {
-	    if(me.equals(lockMap.get(target))) {
-		throw new IllegalStateException("tried to lock multiple times "+target);
+	final Thread me = Thread.currentThread();
+	List<T> distinct = new ArrayList<T>(new LinkedHashSet<T>(targets));
+	distinct.remove(null);
+	SortedMap<Integer, List<T>> byStripe = new TreeMap<Integer, List<T>>();
+	for(T target : distinct) {
+	    byStripe.computeIfAbsent(getStripeIndex(target), k -> new ArrayList<T>()).add(target);
+	}
+	long waitStart = 0l;
+	while(true) {
+	    List<Stripe> taken = new ArrayList<Stripe>(byStripe.size());
+	    Stripe blocked = null;
+	    try {
+		for(Map.Entry<Integer, List<T>> entry : byStripe.entrySet()) {
+		    Stripe stripe = stripes.get(entry.getKey());
+		    stripe.lock.lock();
+		    taken.add(stripe);
+		    for(T target : entry.getValue()) {
+			Thread owner = stripe.held.get(target);
+			if(me.equals(owner)) {
+			    throw new IllegalStateException("tried to lock multiple times "+target);
+			}
+			if(null != owner) {
+			    blocked = stripe;
+			    break;
+			}
+		    }
+		    if(null != blocked) {
+			break;
+		    }
+		}
+		if(closingAll) return null;
+		if(null == blocked) {
+		    for(Map.Entry<Integer, List<T>> entry : byStripe.entrySet()) {
+			for(T target : entry.getValue()) {
+			    stripes.get(entry.getKey()).held.put(target, me);
+			}
+		    }
+		    acquireCount.increment();
+		    if(0l != waitStart) {
+			waitNanos.add(System.nanoTime() - waitStart);
+		    }
+		    return new Lock(null, distinct);
+		}
+		for(Stripe stripe : taken) {
+		    if(stripe != blocked) {
+			stripe.lock.unlock();
+		    }
+		}
+		taken.clear();
+		taken.add(blocked);
+		if(0l == waitStart) {
+		    waitStart = System.nanoTime();
+		    contentionCount.increment();
+		}
+		blocked.waiters++;
+		try {
+		    blocked.released.awaitUninterruptibly();
+		}
+		finally {
+		    blocked.waiters--;
+		}
+	    }
+	    finally {
+		for(Stripe stripe : taken) {
+		    stripe.lock.unlock();
+		}
 	    }
 	}
+    }
 
-	if(closingAll) return null;
+    /**
+     * @return amount of locks granted
+     **/
+    public long getAcquireCount()
+    {
+	return acquireCount.sum();
+    }
 
-	return new Lock(target);
+    /**
+     * @return amount of locks that had to wait for another thread
+     **/
+    public long getContentionCount()
+    {
+	return contentionCount.sum();
+    }
+
+    /**
+     * @return total time the contended locks waited, in nanoseconds
+     **/
+    public long getWaitNanos()
+    {
+	return waitNanos.sum();
     }
 
     /**
      * Signals that no new locks should be allowed to be opened and further closings of currently open locks can be ignored.
+     * Waits until the locks held are closed. Threads waiting for a lock get null.
      **/
     public void close()
     {
 	closingAll = true;
-	final int waitMillis = 10;
-	for(int waitTrials = 300; !lockMap.isEmpty(); waitTrials--) {
+	for(Stripe stripe : stripes) {
+	    stripe.lock.lock();
 	    try {
-		Thread.sleep(waitMillis);
+		stripe.released.signalAll();
+		while(!stripe.held.isEmpty()) {
+		    stripe.released.awaitUninterruptibly();
+		}
 	    }
-	    catch (InterruptedException ie) {
+	    finally {
+		stripe.lock.unlock();
 	    }
 	}
     }
@@ -89,12 +312,19 @@ public class LockMap<T>
      **/
     private synchronized String contentString()
     {
-	synchronized(lockMap) {
-	    return
-		lockMap.entrySet().stream()
-		.map(es -> "["+es.getKey()+";"+es.getValue()+"]")
-		.collect(Collectors.joining(";","[","]"));
+	List<String> contents = new ArrayList<String>();
+	for(Stripe stripe : stripes) {
+	    stripe.lock.lock();
+	    try {
+		stripe.held.entrySet().stream()
+		    .map(es -> "["+es.getKey()+";"+es.getValue()+"]")
+		    .forEach(contents::add);
+	    }
+	    finally {
+		stripe.lock.unlock();
+	    }
 	}
+	return contents.stream().collect(Collectors.joining(";","[","]"));
     }
 
     /**
@@ -219,6 +449,38 @@ public class LockMap<T>
 	}
 	return true;
     }
+    /**
+     * Tests that lockAll waits for a held target without holding the others, and that the wait is counted.
+     *
+     * @returns true if the other target could be locked while lockAll waited and lockAll got both after the release.
+     **/
+    @SuppressWarnings("try")
+    private static boolean testLockAll()
+    {
+	try(LockMap<Long> C = new LockMap<Long>()) {
+	    Thread waiter;
+	    try(LockMap<Long>.Lock held = C.lock(Long.valueOf(1l))) {
+		waiter = new Thread(() -> {
+			try(LockMap<Long>.Lock both = C.lockAll(Arrays.asList(Long.valueOf(1l), Long.valueOf(2l)))) {
+			    System.out.println("lockAll got "+C.contentString());
+			}
+		    });
+		waiter.start();
+		Thread.sleep(200);
+		try(LockMap<Long>.Lock other = C.lock(Long.valueOf(2l))) {
+		    System.out.println("locked 2 while lockAll waits: "+C.contentString());
+		}
+	    }
+	    waiter.join();
+	    System.out.println("acquired "+C.getAcquireCount()+", contended "+C.getContentionCount()
+			       +", waited "+C.getWaitNanos()/1000000+" ms");
+	    return (3 == C.getAcquireCount()) && (1 == C.getContentionCount());
+	}
+	catch(InterruptedException ie) {
+	    return false;
+	}
+    }
+
     /**
      * main method for testing.
      *
@@ -241,6 +503,9 @@ public class LockMap<T>
 	trials++;
 	if(testParallel()) successes++;
 
+	trials++;
+	if(testLockAll()) successes++;
+
 	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
     }
 }
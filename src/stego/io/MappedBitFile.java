@@ -0,0 +1,407 @@
+package stego.io;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+import java.security.SecureRandom;
+import stego.crypto.FileSalt;
+
+/**
+ * Class to read and write parallel into a File that is mapped into memory.
+ *
+ * The file is mapped as segments of SEGMENT_SIZE bytes, so that bit operations are plain loads and stores
+ * into the mapped memory instead of a seek and read or write call for every bit.
+ * Segments that have been written into are marked dirty and forced into the device on flush() and close().
+ *
+ * Single bits are written atomically on the little endian 64-bit word holding them, like in SliceBuffer,
+ * so threads setting bits of the same word at the same time need no locks. The segments start at the head of the file
+ * and SEGMENT_SIZE bytes apart, so their words are aligned. The bytes after the last whole word
+ * of the file are changed under the monitor of their segment instead.
+ *
+ * Bits address the whole file like RandomAccessBitFile does, the salt being its first FileSalt.SIZE bytes,
+ * so either can be used on the same bitfile.
+ **/
+public class MappedBitFile implements BitFile
+{
+    public static final int SEGMENT_SIZE_POW_TWO = 30;
+    public static final long SEGMENT_SIZE = 1l << SEGMENT_SIZE_POW_TWO;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    public final long fileLength;
+    private final FileSalt filesalt;
+    private final boolean writable;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final AtomicIntegerArray dirtySegments;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Maps the target File for reading and writing.
+     *
+     * @param file the bitfile to map
+     * @throws IOException if opening or mapping the file fails
+     **/
+    public MappedBitFile(File file)
+	throws IOException
+    {
+	this(file, true);
+    }
+
+    /**
+     * Maps the target File into memory segment by segment.
+     *
+     * @param file the bitfile to map
+     * @param writable if false, file is mapped read only and setBit throws IOException
+     * @throws IOException if opening or mapping the file fails
+     **/
+    public MappedBitFile(File file, boolean writable)
+	throws IOException
+    {
+	this.writable = writable;
+	this.channel = new RandomAccessFile(file, writable ? "rw" : "r").getChannel();
+	try {
+	    this.fileLength = channel.size();
+	    if(fileLength < FileSalt.SIZE) {
+		throw new IOException("bitfile "+file+" is too short to contain salt: "+fileLength);
+	    }
+	    FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+	    int segmentCount = Math.toIntExact((fileLength + SEGMENT_SIZE - 1) >> SEGMENT_SIZE_POW_TWO);
+	    this.segments = new MappedByteBuffer[segmentCount];
+	    this.dirtySegments = new AtomicIntegerArray(segmentCount);
+	    for(int i = 0; i < segmentCount; i++) {
+		long segmentStart = ((long)i) << SEGMENT_SIZE_POW_TWO;
+		segments[i] = channel.map(mode, segmentStart, Math.min(SEGMENT_SIZE, fileLength - segmentStart));
+	    }
+	    byte[] salt = new byte[FileSalt.SIZE];
+	    segments[0].get(0, salt);
+	    this.filesalt = new FileSalt(salt);
+	}
+	catch(IOException | RuntimeException e) {
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Checks if this MappedBitFile is closed and throws IOException if it is
+     *
+     * @throws IOException if this file is already closed.
+     **/
+    private void throwIfClosed()
+	throws IOException
+    {
+	if(isClosed) {
+	    throw new IOException("Access to MappedBitFile after it is closed.");
+	}
+    }
+
+    /**
+     * Gets the salt, which is the first FileSalt.SIZE bytes of the file like in RandomAccessBitFile.
+     *
+     * @return the salt
+     **/
+    public FileSalt getFileSalt()
+    {
+	return filesalt;
+    }
+
+    /**
+     * @return position of the byte holding the bit of address, modulo file length like in RandomAccessBitFile
+     **/
+    private long getBytePosition(long address)
+    {
+	return Math.floorMod((address / 8), fileLength);
+    }
+
+    /**
+     * @return the segment of the byte
+     * @throws IOException if this file has been closed and its segments released
+     **/
+    private MappedByteBuffer getSegment(long bytePosition)
+	throws IOException
+    {
+	MappedByteBuffer segment = segments[(int)(bytePosition >> SEGMENT_SIZE_POW_TWO)];
+	if(null == segment) {
+	    throwIfClosed();
+	}
+	return segment;
+    }
+
+    /**
+     * Reads a bit in the address modulo size bits.
+     * Single byte loads are atomic, so reading does not lock the byte.
+     *
+     * @param address target address
+     * @return state of bit in address
+     **/
+    public boolean getBit(long address)
+	throws IOException
+    {
+	throwIfClosed();
+	long bytePosition = getBytePosition(address);
+	byte bitMask = (byte)(1 << (address & 0x7));
+	return 0 != (getSegment(bytePosition).get((int)(bytePosition & SEGMENT_MASK)) & bitMask);
+    }
+
+    /**
+     * Writes a bit into target address and marks its segment dirty.
+     * A bit written while the file is closed is either forced by close() or reported with IOException.
+     *
+     * @param address target address in bits
+     * @param state if true, sets the bit, otherwise clears it
+     **/
+    public void setBit(long address, boolean state)
+	throws IOException
+    {
+	if(!writable) {
+	    throw new IOException("Cannot write into read only MappedBitFile.");
+	}
+	throwIfClosed();
+	long bytePosition = getBytePosition(address);
+	int segmentNumber = (int)(bytePosition >> SEGMENT_SIZE_POW_TWO);
+	int index = (int)(bytePosition & SEGMENT_MASK);
+	int wordOffset = index & -Long.BYTES;
+	MappedByteBuffer segment = getSegment(bytePosition);
+	if(wordOffset + Long.BYTES <= segment.limit()) {
+	    long mask = 1l << (((index - wordOffset) << 3) + (address & 0x7));
+	    if(state) {
+		WORDS.getAndBitwiseOr(segment, wordOffset, mask);
+	    } else {
+		WORDS.getAndBitwiseAnd(segment, wordOffset, ~mask);
+	    }
+	} else {
+	    byte bitMask = (byte)(1 << (address & 0x7));
+	    synchronized(segment) {
+		byte current = segment.get(index);
+		if(state) {
+		    current |= bitMask;
+		} else {
+		    current &= ~bitMask;
+		}
+		segment.put(index, current);
+	    }
+	}
+	if(0 == dirtySegments.get(segmentNumber)) {
+	    dirtySegments.set(segmentNumber, 1);
+	}
+	// close() marks the file closed before forcing, so a write seen here as not closed is forced by it
+	throwIfClosed();
+    }
+
+    /**
+     * Forces the segments written into since the last flush to the device.
+     *
+     * @throws IOException if this file is already closed.
+     **/
+    public void flush()
+	throws IOException
+    {
+	throwIfClosed();
+	forceDirtySegments();
+    }
+
+    private void forceDirtySegments()
+    {
+	for(int i = 0; i < segments.length; i++) {
+	    if(dirtySegments.compareAndSet(i, 1, 0)) {
+		segments[i].force();
+	    }
+	}
+    }
+
+    /**
+     * Flushes dirty segments and closes the underlying channel.
+     * The mappings themselves are released when the segments are garbage collected.
+     *
+     * @throws IOException if closing the channel throws IOException.
+     **/
+    public synchronized void close()
+	throws IOException
+    {
+	if(isClosed) return;
+	isClosed = true;
+	try {
+	    if(writable) {
+		forceDirtySegments();
+	    }
+	}
+	finally {
+	    Arrays.fill(segments, null);
+	    channel.close();
+	}
+    }
+
+    /**
+     * Testing methods
+     **/
+
+    private static boolean expectedBit(long address)
+    {
+	return 0 != Long.bitCount(address*address+address)%2;
+    }
+
+    private static int testBitCount(File f)
+    {
+	return Math.toIntExact(Math.min(100000l, f.length() * 8));
+    }
+
+    /**
+     * Writes bits next to each other from many threads at once, so that threads change the same words at the same time.
+     **/
+    private static boolean MappedWriteTest(File f)
+    {
+	try (BitFile bitFile = BitFile.open(f, BitFile.Backend.MAPPED)) {
+	    Optional<IOException> oioe =
+		IntStream.range(0,testBitCount(f)).parallel()
+		.mapToObj(i -> {
+			try {
+			    bitFile.setBit(i, expectedBit(i));
+			    return null;
+			} catch (IOException ioe) {
+			    return ioe;
+			}
+		    })
+		.filter(e -> null != e)
+		.findAny();
+	    if(oioe.isPresent()) {
+		oioe.get().printStackTrace();
+		return false;
+	    }
+	}
+	catch (IOException closeException) {
+	    closeException.printStackTrace();
+	    return false;
+	}
+	return true;
+    }
+
+    private static boolean MappedReadTest(File f)
+    {
+	try (MappedBitFile bitFile = new MappedBitFile(f, false)) {
+	    boolean failed =
+		IntStream.range(0,testBitCount(f)).parallel()
+		.filter(i -> {
+			try {
+			    boolean bit = bitFile.getBit(i);
+			    if(bit != expectedBit(i)) {
+				System.out.println("at "+i+" there should have been "+(expectedBit(i) ? 1:0)+" but there was "+(bit ? 1:0));
+				return true; // found error
+			    }
+			    return false; // no error
+			}
+			catch (IOException ioe) {
+			    ioe.printStackTrace();
+			    return true;
+			}
+		    })
+		.findAny().isPresent();
+	    return !failed;
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return false;
+	}
+    }
+
+    /**
+     * Reads the bits written by MappedWriteTest with the CHANNEL backend, which addresses the file the same way.
+     **/
+    private static boolean ChannelReadTest(File f)
+    {
+	try (BitFile bitFile = BitFile.open(f, BitFile.Backend.CHANNEL)) {
+	    for(int i = 0; i < testBitCount(f); i++) {
+		if(bitFile.getBit(i) != expectedBit(i)) {
+		    System.out.println("at "+i+" the channel backend read "+(expectedBit(i) ? 0:1));
+		    return false;
+		}
+	    }
+	    return true;
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return false;
+	}
+    }
+
+    /**
+     * @returns true if setBit on a read only mapping throws IOException
+     **/
+    private static boolean ReadOnlyWriteTest(File f)
+    {
+	try (MappedBitFile bitFile = new MappedBitFile(f, false)) {
+	    try {
+		bitFile.setBit(0l, true);
+		return false;
+	    }
+	    catch(IOException expected) {
+		return true;
+	    }
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return false;
+	}
+    }
+
+    public static void main(String[] args)
+	throws IOException
+    {
+	String testFileName = "test.tmp";
+	long testFileLength = 10000l;
+	for(String arg : args) {
+	    try {
+		testFileLength = Long.valueOf(arg);
+	    }
+	    catch(NumberFormatException nfe) {
+		testFileName = arg;
+	    }
+	}
+	File testFile = new File(testFileName);
+
+	int trials = 0;
+	int successes = 0;
+
+	// a data area shorter than a word is changed byte by byte
+	for(long length : new long[] { testFileLength, FileSalt.SIZE + 5 }) {
+	    System.out.println("Testfile: '"+testFileName+"' "+length+" bytes.");
+	    try(FileOutputStream fos = new FileOutputStream(testFile)) {
+		byte[] content = new byte[Math.toIntExact(length)];
+		new SecureRandom().nextBytes(content);
+		fos.write(content);
+	    }
+
+	    trials++;
+	    if(MappedWriteTest(testFile)) {
+		System.out.println("Test file write passed.");
+		successes++;
+	    }
+
+	    trials++;
+	    if(MappedReadTest(testFile)) {
+		System.out.println("Test file read passed.");
+		successes++;
+	    }
+
+	    trials++;
+	    if(ChannelReadTest(testFile)) {
+		System.out.println("Test file read with channel backend passed.");
+		successes++;
+	    }
+	}
+
+	trials++;
+	if(ReadOnlyWriteTest(testFile)) {
+	    System.out.println("Test read only write passed.");
+	    successes++;
+	}
+
+	System.out.println(""+successes+"/"+trials+" tests succeeded.");
+    }
+}
@@ -3,7 +3,6 @@ package stego.io;
 import java.io.*;
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.stream.IntStream;
 import java.nio.*;
 import stego.ecc.*;
 import stego.crypto.*;
@@ -62,10 +61,74 @@ public class Metadata extends GuardedByteArray
 	return result;
     }
 
+    /**
+     * The metadata chain is systematic: ReedSolomonCoder(Field.size()) has one byte shards with the data shards first,
+     * and HammingCoder turns each of them into two bytes in place.
+     * So the RUNWAY bytes are the Hamming codes in the first RUNWAY_ARMORED_BYTES armored bytes.
+     **/
+    public static final int RUNWAY_ARMORED_BYTES = Field.RUNWAY.end() * 2;
+    /**
+     * Least amount of runway bytes that must decode to RUNWAY_MARKER for probeRunway() to accept a candidate.
+     * Bits of a label may be overwritten by later payloads, so a damaged runway of a real label
+     * must still reach the full decode, where Reed-Solomon recovers it.
+     **/
+    public static final int RUNWAY_PROBE_MIN_MATCHES = 1;
+
+    /**
+     * Checks whether the metadata of trail may be in bitfield by reading only the hops of the armored runway.
+     *
+     * A wrong candidate decodes a runway byte into RUNWAY_MARKER with a probability of about 1/800,
+     * so nearly all wrong candidates are rejected after RUNWAY_ARMORED_BYTES*8 reads
+     * instead of the reads of the whole armored label.
+     *
+     * @param bitfield the bitfield the metadata is hidden in
+     * @param trail the trail of the candidate
+     * @return false if the candidate is surely wrong, true if it should be fully decoded
+     * @throws IOException if reading the bitfield fails
+     **/
+    public static boolean probeRunway(LargeBitfield bitfield, CipherTrail trail)
+	throws IOException
+    {
+	final int hopCount = RUNWAY_ARMORED_BYTES * 8;
+	long[] addresses = new long[hopCount];
+	long[] cipherBits = new long[(hopCount + Long.SIZE - 1) / Long.SIZE];
+	byte[] armored = new byte[RUNWAY_ARMORED_BYTES];
+	try {
+	    trail.findHops(0l, addresses, cipherBits, 0, hopCount);
+	    for(int i = 0; i < hopCount; i++) {
+		if(CipherTrail.getCipherBit(cipherBits, i) ^ bitfield.getBit(addresses[i])) {
+		    armored[i / 8] |= (byte)(1 << (i % 8));
+		}
+	    }
+	    int matches = 0;
+	    for(int i = 0; i < Field.RUNWAY.length(); i++) {
+		int code = (0xff & armored[2*i]) | ((0xff & armored[2*i+1]) << 8);
+		try {
+		    if(RUNWAY_MARKER == (byte)HammingCoder.decode(code, null)) {
+			matches++;
+		    }
+		}
+		catch(CodingException ce) {
+		    // an uncorrectable byte is no evidence either way
+		}
+	    }
+	    return matches >= RUNWAY_PROBE_MIN_MATCHES;
+	}
+	finally {
+	    Arrays.fill(addresses, 0l);
+	    Arrays.fill(cipherBits, 0l);
+	    Arrays.fill(armored, (byte)0);
+	}
+    }
+
     /**
      * Internal contents are stored in basedata, which is cleared in close().
      **/
     private final byte[] basedata = super.bytes;
+    /**
+     * Nonce this metadata was decrypted with, or null if it is not known. Cleared in close().
+     **/
+    private byte[] nonce = null;
     public long getLength()
     {
 	return
@@ -103,12 +166,31 @@ public class Metadata extends GuardedByteArray
 	}
 	return result;
     }
-    /*
+    /**
+     * @returns copy of the nonce this metadata was decrypted with, or null if it is not known. Caller is responsible for clearing it.
+     **/
+    public byte[] getNonceCopy()
+    {
+	return (null == nonce) ? null : nonce.clone();
+    }
+    /**
+     * @param nonce the nonce this metadata was decrypted with, which is copied
+     **/
+    void setNonce(byte[] nonce)
+    {
+	if(null != this.nonce) {
+	    Arrays.fill(this.nonce, (byte)0);
+	}
+	this.nonce = nonce.clone();
+    }
     public void close()
     {
-	Arrays.fill(basedata,(byte)0);
+	if(null != nonce) {
+	    Arrays.fill(nonce, (byte)0);
+	    nonce = null;
+	}
+	super.close();
     }
-    */
     /**
      * @param keyMaterial to make a copy to internal contents. Source is not used after constructor, and internal storage is cleared in close()
      * @param length the length of the target data this Metadata points to
@@ -166,35 +248,167 @@ public class Metadata extends GuardedByteArray
     {
 	CipherTrail ct = new CipherTrail(filesalt, passcode, nonce);
 	Metadata result = new Metadata(super.bytes.clone());
-	try(GuardedByteArray mask = new GuardedByteArray(ct.getMask(0,basedata.length))) {
-	    IntStream.range(0,basedata.length).parallel()
-		.forEach(i -> result.basedata[i] = (byte)(result.basedata[i] ^ mask.bytes[i]));
-	    return result;
+	ct.xorMask(0, result.basedata, 0, result.basedata.length);
+	result.setNonce(nonce);
+	return result;
+    }
+    /**
+     * Decrypts this metadata with the trail of material, like cipher(filesalt, passcode, nonce)
+     * for the passcode and nonce the material was derived from.
+     *
+     * @param material key and IV material given by CipherTrail.derivePasswordMaterial, which is not modified
+     * @return the decrypted metadata
+     **/
+    Metadata cipher(GuardedByteArray material)
+    {
+	CipherTrail ct = CipherTrail.fromPasswordMaterial(material);
+	Metadata result = new Metadata(super.bytes.clone());
+	ct.xorMask(0, result.basedata, 0, result.basedata.length);
+	return result;
+    }
+    /**
+     * Decrypts this metadata with the nonce keyring has recorded for passcode in the file of filesalt.
+     * An entry that does not open this metadata, because the file has been written over since, is removed from keyring.
+     *
+     * @param filesalt salt of the file
+     * @param passcode the passcode
+     * @param keyring the keyring or null for none
+     * @return the decrypted metadata or null if keyring has no entry that opens it
+     * @throws IOException if saving keyring fails
+     **/
+    public Metadata openRecorded(FileSalt filesalt, char[] passcode, Keyring keyring)
+	throws IOException
+    {
+	byte[] recorded = (null == keyring) ? null : keyring.getNonce(filesalt, passcode);
+	if(null == recorded) {
+	    return null;
+	}
+	try {
+	    Metadata decrypted = this.cipher(filesalt, passcode, recorded);
+	    if(decrypted.isValid()) {
+		return decrypted;
+	    }
+	    decrypted.close();
+	    keyring.remove(filesalt, passcode);
+	    keyring.save();
+	    return null;
+	}
+	finally {
+	    Arrays.fill(recorded, (byte)0);
+	}
+    }
+
+    /**
+     * Decrypts this metadata with the nonce recorded in keyring, or finds the nonce of passcode
+     * like open(filesalt, passcode, random) and records it into keyring and saves it.
+     *
+     * @param filesalt salt of the file
+     * @param passcode the passcode
+     * @param random source of the start points
+     * @param keyring the keyring or null to always search
+     * @return the decrypted metadata
+     * @throws IOException if saving keyring fails
+     **/
+    public Metadata open(FileSalt filesalt, char[] passcode, SecureRandom random, Keyring keyring)
+	throws IOException
+    {
+	Metadata result = openRecorded(filesalt, passcode, keyring);
+	if(null == result) {
+	    result = open(filesalt, passcode, random);
+	    if(null != keyring) {
+		keyring.put(filesalt, passcode, result);
+		keyring.save();
+	    }
 	}
+	return result;
     }
     public Metadata open(FileSalt filesalt, char[] passcode, SecureRandom random)
     {
-	int nonceLength = 0;
-	while(true) {
-	    try(Nonce nonce = new Nonce(new byte[nonceLength])) {
-		random.nextBytes(nonce.bytes);
-		try(GuardedByteArray currentZero = new GuardedByteArray(nonce.bytes.clone())) {
-		    boolean currentNotCarried = true;
-		    while(currentNotCarried) {
-			CommandLineInterface.showProgress();
-			Metadata decrypted = this.cipher(filesalt,passcode,nonce.bytes);
-			if(decrypted.isValid()) {
-			    return decrypted;
-			} else {
-			    currentNotCarried = nonce.incrementAndCheck(currentZero);
-			    if(!currentNotCarried) {
-			    }
-			}
+	return open(filesalt, passcode, random, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Finds the nonce of passcode and decrypts this metadata with it.
+     *
+     * Nonce sizes are tried from 0 up, each from a random start point, with the candidates spread over workers threads.
+     * A candidate derives only the first content mask block, which covers the runway checked by isValid(),
+     * and only a hit decrypts the whole metadata. Attempts per second are shown on the console during the search.
+     *
+     * @param filesalt salt of the file
+     * @param passcode the passcode
+     * @param random source of the start points
+     * @param workers amount of threads trying candidates
+     * @return the decrypted metadata
+     **/
+    public Metadata open(FileSalt filesalt, char[] passcode, SecureRandom random, int workers)
+    {
+	try(NonceSearch search = new NonceSearch(workers)) {
+	    for(int nonceLength = 0; true; nonceLength++) {
+		final int currentLength = nonceLength;
+		try(Nonce nonce = new Nonce(new byte[nonceLength])) {
+		    random.nextBytes(nonce.bytes);
+		    search.setReporter(() -> CommandLineInterface.showProgress("nonce size "+currentLength+": "
+									       +search.getAttemptCount()+" attempts, "
+									       +Math.round(search.getAttemptsPerSecond())+"/s "));
+		    Metadata result
+			= search.search(nonce.bytes,
+					candidate -> {
+					    if(!hasRunway(filesalt, passcode, candidate)) {
+						return null;
+					    }
+					    Metadata decrypted = this.cipher(filesalt, passcode, candidate);
+					    if(decrypted.isValid()) {
+						return decrypted;
+					    }
+					    decrypted.close();
+					    return null;
+					},
+					() -> false);
+		    if(null != result) {
+			return result;
 		    }
-		    nonceLength++;
 		}
 	    }
 	}
     }
-	
+
+    private boolean hasRunway(FileSalt filesalt, char[] passcode, byte[] nonce)
+    {
+	byte[] mask = new byte[CipherTrail.AES256_BLOCK_SIZE_BYTES];
+	try {
+	    CipherTrail.getPasswordBlockMask(filesalt, passcode, nonce, 0l, mask, 0);
+	    return hasRunway(mask);
+	}
+	finally {
+	    Arrays.fill(mask, (byte)0);
+	}
+    }
+
+    /**
+     * Checks the runway of this metadata with the first content mask block of the trail of material.
+     *
+     * @param material key and IV material given by CipherTrail.derivePasswordMaterial, which is not modified
+     * @return true if the runway decrypts to the marker, which is checked completely by isValid() of the decrypted metadata
+     **/
+    boolean hasRunway(GuardedByteArray material)
+    {
+	byte[] mask = new byte[CipherTrail.AES256_BLOCK_SIZE_BYTES];
+	try {
+	    CipherTrail.getPasswordBlockMask(material, 0l, mask, 0);
+	    return hasRunway(mask);
+	}
+	finally {
+	    Arrays.fill(mask, (byte)0);
+	}
+    }
+
+    private boolean hasRunway(byte[] mask)
+    {
+	for(int i = Field.RUNWAY.start(); i < Field.RUNWAY.end(); i++) {
+	    if(RUNWAY_MARKER != (byte)(basedata[i] ^ mask[i])) {
+		return false;
+	    }
+	}
+	return true;
+    }
 }
@@ -71,10 +71,22 @@ public class MetadataHider
 	}
     }
 
+    /**
+     * Records the nonce of the metadata into keyring for the passcode in the bitfile of filesalt, so that the keyring
+     * gives this metadata instead of one written earlier with the same passcode.
+     *
+     * @param keyring the keyring
+     * @param filesalt salt of the bitfile the metadata was written into
+     **/
+    public void record(Keyring keyring, FileSalt filesalt)
+    {
+	keyring.putNonce(filesalt, passcode, nonce.bytes);
+    }
+
     private void writeMetadata(LargeBitfield bitfield)
 	throws IOException
     {
-	CipherTrail metaTrail = new CipherTrail(bitfield.getFileSalt(), passcode, nonce.bytes, false);
+	CipherTrail metaTrail = CipherTrail.cached(bitfield.getFileSalt(), passcode, nonce.bytes);
 
 	try(BaseStegoOutputStream metaStream = new BaseStegoOutputStream(bitfield, metaTrail, Metadata.getMetadataArmorChain())) {
 	    byte[] metaBytes = metadata.getByteCopy();
@@ -0,0 +1,290 @@
+package stego.io;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import stego.crypto.*;
+import stego.util.CommandLineInterface;
+
+/**
+ * Searches a passcode in several bitfiles at once, to find which of them holds it.
+ *
+ * All bitfiles are unlocked with the same passcode when the finder is created, in one shared pass over the nonce space
+ * that stops at a maximum nonce size, so that files which are no bitfiles of the passcode are skipped instead of searched forever.
+ * The searches of the files in them stop at the same maximum nonce size.
+ * A search goes through the nonce space once, trying every nonce candidate in each bitfile,
+ * so a single NonceSearch pool of the given size is shared by all the bitfiles
+ * and the search ends for all of them at the first hit.
+ * The passcode derivation does not depend on the file salt, so each candidate is derived once for all the bitfiles.
+ **/
+public class MultiFileFinder
+    implements AutoCloseable
+{
+    /**
+     * A bitfile that holds the searched passcode, with the stream of the found file.
+     **/
+    public static class Hit
+    {
+	public final File file;
+	public final ReadonlyBitFile bitfile;
+	public final InputStream stream;
+	private Hit(File file, ReadonlyBitFile bitfile, InputStream stream)
+	{
+	    this.file = file;
+	    this.bitfile = bitfile;
+	    this.stream = stream;
+	}
+    }
+
+    private final List<File> files = new ArrayList<File>();
+    private final Map<File, String> skipped = new LinkedHashMap<File, String>();
+    private final List<ReadonlyBitFile> bitfiles = new ArrayList<ReadonlyBitFile>();
+    private final List<FileFinder> finders = new ArrayList<FileFinder>();
+    private final int searchWorkers;
+    private final int maxNonceSize;
+    private volatile boolean isCancelled = false;
+
+    /**
+     * Unlocks the bitfiles in files with passcode.
+     *
+     * Keyring entries are used first. The other files are unlocked together, every nonce candidate of the passcode
+     * being derived once and checked against the metadata of each file that is still locked.
+     * Files that are too short for a bitfile or whose nonce is not found up to maxNonceSize are skipped.
+     * Nonces are written with a random amount of bytes over the minimum size, so maxNonceSize should be above it.
+     *
+     * @param files the bitfiles
+     * @param passcode passcode of the bitfiles
+     * @param maxNonceSize largest nonce size searched, both of passcode and of the files in find
+     * @param searchWorkers amount of threads searching nonces, shared by all bitfiles
+     * @param keyring keyring of the metadata of the bitfiles and the files in them, or null for none
+     * @throws IOException if reading a bitfile fails
+     **/
+    public MultiFileFinder(List<File> files, char[] passcode, int maxNonceSize, int searchWorkers, Keyring keyring)
+	throws IOException
+    {
+	this.searchWorkers = searchWorkers;
+	this.maxNonceSize = maxNonceSize;
+	final int count = files.size();
+	Metadata[] lockedMetadata = new Metadata[count];
+	FileSalt[] salts = new FileSalt[count];
+	AtomicReferenceArray<Metadata> openers = new AtomicReferenceArray<Metadata>(count);
+	AtomicInteger remaining = new AtomicInteger(0);
+	try {
+	    for(int i = 0; i < count; i++) {
+		File file = files.get(i);
+		if(file.length() < Metadata.Field.size() + FileSalt.SIZE) {
+		    skipped.put(file, "it is too short for a bitfile");
+		    continue;
+		}
+		byte[] salt = new byte[FileSalt.SIZE];
+		try(FileInputStream fis = new FileInputStream(file)) {
+		    lockedMetadata[i] = Metadata.read(fis);
+		    if(fis.read(salt) < salt.length) {
+			throw new EOFException("bitfile "+file+" ends before its salt.");
+		    }
+		}
+		salts[i] = new FileSalt(salt);
+		Metadata known = lockedMetadata[i].openRecorded(salts[i], passcode, keyring);
+		if(null != known) {
+		    openers.set(i, known);
+		    lockedMetadata[i].close();
+		    lockedMetadata[i] = null;
+		} else {
+		    remaining.incrementAndGet();
+		}
+	    }
+	    unlock(lockedMetadata, passcode, maxNonceSize, openers, remaining);
+	    boolean isKeyringChanged = false;
+	    for(int i = 0; i < count; i++) {
+		Metadata opener = openers.get(i);
+		if(null == opener) {
+		    skipped.putIfAbsent(files.get(i), "it does not open with the passcode up to nonce size "+maxNonceSize);
+		    continue;
+		}
+		if((null != keyring) && (null != lockedMetadata[i])) {
+		    keyring.put(salts[i], passcode, opener);
+		    isKeyringChanged = true;
+		}
+		ReadonlyBitFile bitfile = ReadonlyBitFile.read(files.get(i), opener);
+		FileFinder finder = new FileFinder(bitfile, searchWorkers);
+		finder.setKeyring(keyring);
+		this.files.add(files.get(i));
+		this.bitfiles.add(bitfile);
+		this.finders.add(finder);
+	    }
+	    if(isKeyringChanged) {
+		keyring.save();
+	    }
+	}
+	catch(IOException | RuntimeException e) {
+	    close();
+	    throw e;
+	}
+	finally {
+	    for(int i = 0; i < count; i++) {
+		if(null != lockedMetadata[i]) {
+		    lockedMetadata[i].close();
+		}
+		if(null != salts[i]) {
+		    salts[i].close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Searches the nonce of passcode for every metadata in lockedMetadata that has no opener yet,
+     * with nonce sizes from 0 to maxNonceSize, each from a random start point.
+     * A metadata whose nonce is found gets its decrypted metadata in openers.
+     **/
+    private void unlock(Metadata[] lockedMetadata, char[] passcode, int maxNonceSize,
+			AtomicReferenceArray<Metadata> openers, AtomicInteger remaining)
+    {
+	SecureRandom random = new SecureRandom();
+	try(NonceSearch search = new NonceSearch(searchWorkers)) {
+	    for(int nonceSize = 0; (nonceSize <= maxNonceSize) && (0 < remaining.get()); nonceSize++) {
+		final int currentSize = nonceSize;
+		try(Nonce nonceStartPoint = new Nonce(new byte[nonceSize])) {
+		    random.nextBytes(nonceStartPoint.bytes);
+		    search.setReporter(() -> CommandLineInterface.showProgress("unlocking, nonce size "+currentSize+": "
+									       +search.getAttemptCount()+" attempts, "
+									       +remaining.get()+" bitfiles left "));
+		    search.search(nonceStartPoint.bytes,
+				  candidate -> {
+				      try(GuardedByteArray material = CipherTrail.derivePasswordMaterial(passcode, candidate)) {
+					  for(int i = 0; i < lockedMetadata.length; i++) {
+					      if((null == lockedMetadata[i]) || (null != openers.get(i))
+						 || !lockedMetadata[i].hasRunway(material)) {
+						  continue;
+					      }
+					      Metadata decrypted = lockedMetadata[i].cipher(material);
+					      decrypted.setNonce(candidate);
+					      if(!decrypted.isValid() || !openers.compareAndSet(i, null, decrypted)) {
+						  decrypted.close();
+						  continue;
+					      }
+					      if(0 == remaining.decrementAndGet()) {
+						  return Boolean.TRUE;
+					      }
+					  }
+				      }
+				      return null;
+				  },
+				  () -> false);
+		}
+	    }
+	}
+    }
+
+    /**
+     * @return the files that were not unlocked, each with the reason: it is too short for a bitfile
+     *         or the passcode was not found in it up to the maximum nonce size
+     **/
+    public Map<File, String> getSkipped()
+    {
+	return Collections.unmodifiableMap(skipped);
+    }
+
+    public void cancel() {
+	isCancelled = true;
+    }
+    public void uncancel() {
+	isCancelled = false;
+    }
+
+    /**
+     * Searches passcode in all bitfiles, trying nonce sizes from nonceSizeGuess and then from 0 up to the maximum nonce size.
+     * Keyring hits are returned without searching.
+     *
+     * @param passcode the passcode of the searched file
+     * @param nonceSizeGuess nonce size searched first
+     * @return the bitfile holding passcode and the stream of its file, or null if it is not found up to the maximum nonce size
+     *         or the search was cancelled
+     * @throws IOException if reading a bitfile fails
+     **/
+    public Hit find(char[] passcode, int nonceSizeGuess)
+	throws IOException
+    {
+	for(int i = 0; i < finders.size(); i++) {
+	    Metadata known = finders.get(i).lookupKeyring(passcode);
+	    if(null != known) {
+		return open(i, known);
+	    }
+	}
+	SecureRandom random = new SecureRandom();
+	try(NonceSearch search = new NonceSearch(searchWorkers)) {
+	    search.setReporter(CommandLineInterface::showProgress);
+	    for(int step = -1; (step <= maxNonceSize) && !isCancelled; step++) {
+		if(step == nonceSizeGuess) {
+		    continue;
+		}
+		try(Nonce nonceStartPoint = new Nonce(new byte[(step < 0) ? nonceSizeGuess : step])) {
+		    random.nextBytes(nonceStartPoint.bytes);
+		    FoundMetadata found
+			= search.search(nonceStartPoint.bytes,
+					candidate -> {
+					    try(GuardedByteArray material = CipherTrail.derivePasswordMaterial(passcode, candidate)) {
+						for(int i = 0; i < finders.size(); i++) {
+						    Metadata treasure = finders.get(i).tryMetadata(CipherTrail.fromPasswordMaterial(material));
+						    if(null != treasure) {
+							treasure.setNonce(candidate);
+							return new FoundMetadata(i, treasure);
+						    }
+						}
+					    }
+					    return null;
+					},
+					() -> isCancelled);
+		    if(null != found) {
+			finders.get(found.index).recordFound(passcode, found.metadata, null);
+			return open(found.index, found.metadata);
+		    }
+		}
+	    }
+	}
+	catch(UncheckedIOException uioe) {
+	    throw uioe.getCause();
+	}
+	return null;
+    }
+
+    private Hit open(int index, Metadata metadata)
+	throws IOException
+    {
+	try(Metadata opener = metadata) {
+	    return new Hit(files.get(index), bitfiles.get(index), finders.get(index).open(opener));
+	}
+    }
+
+    /**
+     * Metadata found in the bitfile of index, closed with the metadata if the search drops it.
+     **/
+    private static class FoundMetadata
+	implements AutoCloseable
+    {
+	private final int index;
+	private final Metadata metadata;
+	private FoundMetadata(int index, Metadata metadata)
+	{
+	    this.index = index;
+	    this.metadata = metadata;
+	}
+	public void close()
+	{
+	    metadata.close();
+	}
+    }
+
+    /**
+     * Closes all bitfiles.
+     **/
+    public void close()
+	throws IOException
+    {
+	for(ReadonlyBitFile bitfile : bitfiles) {
+	    bitfile.close();
+	}
+    }
+}
@@ -0,0 +1,183 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import stego.crypto.*;
+
+/**
+ * Reads bytes from a FileChannel at absolute positions and decrypts them with a CipherTrail.
+ *
+ * No stream position is kept, so one reader is shared by all threads reading the same bitfile
+ * instead of every thread holding its own InputStream and file descriptor.
+ * Each thread decrypts with its own fork of the CipherTrail.
+ * A single byte read reads and decrypts only the one AES block that covers it, into a block buffer of the thread
+ * which is reused, so that reading the following bytes of the same block needs no more reads or decryption.
+ *
+ * Readers derived with decrypting() share the FileChannel, and closing any of them closes it.
+ **/
+public class PositionalCipherReader
+    implements AutoCloseable
+{
+    private final FileChannel channel;
+    private final long offset;
+    private final CipherTrail ciphertrail;
+    private final ThreadLocal<CipherTrail> threadLocalTrail;
+    private final Set<BlockBuffer> blockBuffers = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<BlockBuffer> threadLocalBlock = ThreadLocal.withInitial(() -> {
+	    BlockBuffer created = new BlockBuffer();
+	    blockBuffers.add(created);
+	    return created;
+	});
+
+    /**
+     * The last block a thread read a single byte from, decrypted. Cleared in close().
+     **/
+    private static class BlockBuffer
+    {
+	private final ByteBuffer block = ByteBuffer.allocate(CipherTrail.AES256_BLOCK_SIZE_BYTES);
+	private final byte[] mask = new byte[CipherTrail.AES256_BLOCK_SIZE_BYTES];
+	private long blockNumber = -1l;
+	private int length = 0;
+	private void clear()
+	{
+	    Arrays.fill(block.array(), (byte)0);
+	    Arrays.fill(mask, (byte)0);
+	    blockNumber = -1l;
+	    length = 0;
+	}
+    }
+
+    /**
+     * Opens a reader of cleartext at target file from offset onwards.
+     *
+     * @param file the file to read
+     * @param offset the position in file that is position 0 of this reader
+     * @throws IOException if opening the file fails
+     **/
+    public PositionalCipherReader(File file, long offset)
+	throws IOException
+    {
+	this(FileChannel.open(file.toPath(), StandardOpenOption.READ), offset, null);
+    }
+
+    private PositionalCipherReader(FileChannel channel, long offset, CipherTrail ciphertrail)
+    {
+	this.channel = channel;
+	this.offset = offset;
+	this.ciphertrail = ciphertrail;
+	this.threadLocalTrail = (null == ciphertrail) ? null : ThreadLocal.withInitial(ciphertrail::fork);
+    }
+
+    /**
+     * Creates a reader on the same channel whose contents are encrypted with ciphertrail starting from skip.
+     *
+     * @param skip position in this reader that is the position 0 of ciphertrail
+     * @param ciphertrail the trail whose mask the contents are decrypted with
+     * @return new reader sharing the channel of this reader
+     **/
+    public PositionalCipherReader decrypting(long skip, CipherTrail ciphertrail)
+    {
+	return new PositionalCipherReader(channel, offset+skip, ciphertrail);
+    }
+
+    /**
+     * Reads and decrypts one byte, from the block buffer of the thread if it holds the block of position.
+     *
+     * @param position position of the byte
+     * @return the byte as unsigned int or -1 if position is past the end of the file
+     * @throws IOException if reading fails
+     **/
+    public int read(long position)
+	throws IOException
+    {
+	long blockNumber = Math.floorDiv(position, CipherTrail.AES256_BLOCK_SIZE_BYTES);
+	int offsetInBlock = Math.toIntExact(position - blockNumber*CipherTrail.AES256_BLOCK_SIZE_BYTES);
+	BlockBuffer buffer = threadLocalBlock.get();
+	if(buffer.blockNumber != blockNumber) {
+	    readBlock(blockNumber, buffer);
+	}
+	if(offsetInBlock >= buffer.length) {
+	    return -1;
+	}
+	return Byte.toUnsignedInt(buffer.block.get(offsetInBlock));
+    }
+
+    /**
+     * Reads and decrypts the block of blockNumber into buffer, as much of it as there is before the end of the file.
+     **/
+    private void readBlock(long blockNumber, BlockBuffer buffer)
+	throws IOException
+    {
+	buffer.blockNumber = -1l;
+	ByteBuffer target = buffer.block;
+	target.clear();
+	long blockStart = offset + blockNumber*CipherTrail.AES256_BLOCK_SIZE_BYTES;
+	while(target.hasRemaining()) {
+	    if(channel.read(target, blockStart + target.position()) < 0) {
+		break;
+	    }
+	}
+	buffer.length = target.position();
+	if((null != ciphertrail) && (buffer.length > 0)) {
+	    threadLocalTrail.get().getBlockMask(blockNumber, buffer.mask, 0);
+	    byte[] block = target.array();
+	    for(int i = 0; i < buffer.length; i++) {
+		block[i] ^= buffer.mask[i];
+	    }
+	    Arrays.fill(buffer.mask, (byte)0);
+	}
+	buffer.blockNumber = blockNumber;
+    }
+
+    /**
+     * Reads and decrypts a range of bytes.
+     *
+     * @param position position of the first byte
+     * @param b target array
+     * @param off offset in target array
+     * @param len maximum amount of bytes to read
+     * @return amount of bytes read, which is less than len only at the end of the file, or -1 if position is past the end of the file
+     * @throws IOException if reading fails
+     **/
+    public int read(long position, byte[] b, int off, int len)
+	throws IOException
+    {
+	ByteBuffer target = ByteBuffer.wrap(b, off, len);
+	int readCount = 0;
+	while(target.hasRemaining()) {
+	    int result = channel.read(target, offset+position+readCount);
+	    if(result < 0) {
+		break;
+	    }
+	    readCount += result;
+	}
+	if(readCount < 1) {
+	    return (len < 1) ? 0 : -1;
+	}
+	if(null != ciphertrail) {
+	    threadLocalTrail.get().xorMask(position, b, off, readCount);
+	}
+	return readCount;
+    }
+
+    /**
+     * Closes the channel and clears the block buffers of this reader.
+     **/
+    public void close()
+	throws IOException
+    {
+	try {
+	    channel.close();
+	}
+	finally {
+	    for(BlockBuffer buffer : blockBuffers) {
+		buffer.clear();
+	    }
+	}
+    }
+}
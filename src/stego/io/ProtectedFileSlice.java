@@ -1,17 +1,23 @@
 package stego.io;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.security.SecureRandom;
+import com.sun.management.HotSpotDiagnosticMXBean;
 
 import stego.crypto.*;
 import stego.util.CommandLineInterface;
 
 public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 {
-    private final GuardedByteArray data;
-    private final LockMap<Integer> lockMap = new LockMap<Integer>();
+    /**
+     * Amount of slices in memory at once in writeSlices, one for each stage.
+     **/
+    private static final int PIPELINE_SLICES = 3;
+    private final SliceBuffer data;
 
     private final long windowStart;
     private final long windowEnd;
@@ -37,13 +43,17 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 	this.out = out;
 	this.fileSalt = outputFileSalt;
 
-	this.data = new GuardedByteArray(new byte[Math.toIntExact(windowEnd-windowStart)]);
+	this.data = SliceBuffer.acquire(windowEnd-windowStart);
 	//innerReadonlyBitFile = inFile.openInnerReadonlyBitFile(opener);
 	this.innerReadonlyBitFile = openedInFile;
 	this.innerDataSize = innerReadonlyBitFile.dataLength;
 	try(InputStream in = innerReadonlyBitFile.get()) {
 	    in.skip(windowStart);
-	    in.read(data.bytes);
+	    data.readFrom(in);
+	}
+	catch(IOException | RuntimeException e) {
+	    data.close();
+	    throw e;
 	}
     }
 
@@ -59,16 +69,27 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 	this.out = out;
 	this.fileSalt = outputFileSalt;
 
-	this.data = new GuardedByteArray(new byte[Math.toIntExact(windowEnd-windowStart)]);
+	this.data = SliceBuffer.acquire(windowEnd-windowStart);
 	innerReadonlyBitFile = null;
 	//this.innerDataSize = this.outerDataSize -FileSalt.SIZE;
-	random.nextBytes(data.bytes);
+	data.fillRandom(random);
     }
     public void close()
 	throws IOException
     {
-	lockMap.close();
-	out.write(data.bytes);
+	try {
+	    data.writeTo(out);
+	}
+	finally {
+	    data.close();
+	}
+    }
+
+    /**
+     * Returns the memory of this slice to the pool without writing it.
+     **/
+    void discard()
+    {
 	data.close();
     }
 
@@ -87,13 +108,7 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
     {
 	long relativeAddress = getRelative(address);
 	if(hasBit(relativeAddress)) {
-	    int position = Math.toIntExact(relativeAddress - windowStart);
-	    int bitPosition = position & 0x7;
-	    int bytePosition = position >> 3;
-	    byte bitMask = (byte)(1<<bitPosition);
-	    try(LockMap.Lock myLock = lockMap.lock(bytePosition)) {
-		return 0 != (data.bytes[bytePosition] & bitMask);
-	    }
+	    return data.getBit(relativeAddress - windowStart);
 	}
 	if(null != innerReadonlyBitFile) {
 	    return innerReadonlyBitFile.getBit(address);
@@ -130,6 +145,7 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
     /**
      * Writes a bit into target address.
      * If the address ends outside this slice, it is ignored.
+     * The bit is changed atomically in its 64-bit word, so writers running in parallel take no locks.
      *
      * @param address target address in bits
      * @param state if true, sets the bit, otherwise clears it
@@ -141,24 +157,215 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 	if(!hasBit(relativeAddress)) {
 	    return; // ignore
 	}
-	int position = Math.toIntExact(relativeAddress - windowStart);
-	int bitPosition = position & 0x7;
-	int bytePosition = position >> 3;
-	byte bitMask = (byte)(1<<bitPosition);
-	try(LockMap.Lock lock = lockMap.lock(bytePosition)) {
-	    if(state) {
-		data.bytes[bytePosition] |= bitMask;
+	data.setBit(relativeAddress - windowStart, state);
+    }
+
+    /**
+     * Writes a run of a HopRouter into this slice, the entries being positions in this slice shifted left by one
+     * with the state of the bit in the lowest bit. Only one thread writes into the slice while it is applied.
+     *
+     * @param entries the run
+     * @param from index of the first entry
+     * @param to index after the last entry
+     **/
+    void applyRun(long[] entries, int from, int to)
+    {
+	for(int i = from; i < to; i++) {
+	    long position = entries[i] >>> 1;
+	    long bytePosition = position >> 3;
+	    byte bitMask = (byte)(1<<(position & 0x7));
+	    if(0 != (entries[i] & 1l)) {
+		data.put(bytePosition, (byte)(data.get(bytePosition) | bitMask));
 	    } else {
-		data.bytes[bytePosition] &= ~bitMask;
+		data.put(bytePosition, (byte)(data.get(bytePosition) & ~bitMask));
+	    }
+	}
+    }
+
+    /**
+     * Lets every writer write once into a HopRouter when the data spans several slices,
+     * so that their trails are not computed again for every slice.
+     *
+     * @return the router holding the bits of the writers, or null if the data fits in one slice
+     **/
+    private static HopRouter routeWriters(long dataSize, long sliceSize, FileSalt fileSalt, SecureRandom random,
+					  Collection<? extends Consumer<? super LargeBitfield>> writers)
+	throws IOException
+    {
+	if(dataSize <= sliceSize) {
+	    return null;
+	}
+	HopRouter router = new HopRouter(dataSize, sliceSize, fileSalt, random);
+	try {
+	    for(Consumer<? super LargeBitfield> currentTarget : writers) {
+		CommandLineInterface.showProgress();
+		currentTarget.accept(router);
+	    }
+	    return router;
+	}
+	catch(UncheckedIOException e) {
+	    router.close();
+	    throw new IOException(e);
+	}
+	catch(RuntimeException e) {
+	    router.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Writes the bits of the writers that land in slice, from router if there is one and otherwise by the writers themselves.
+     **/
+    private static void writeSlice(ProtectedFileSlice slice, HopRouter router,
+				   Collection<? extends Consumer<? super LargeBitfield>> writers)
+	throws IOException
+    {
+	if(null != router) {
+	    router.apply(slice.windowStart, slice);
+	    return;
+	}
+	for(Consumer<? super LargeBitfield> currentTarget : writers) {
+	    try {
+		currentTarget.accept(slice);
+	    }
+	    catch(UncheckedIOException e) {
+		throw new IOException(e);
+	    }
+	}
+    }
+
+    /**
+     * Creates the slice of a window with its source contents.
+     **/
+    private interface SliceLoader
+    {
+	ProtectedFileSlice load(long windowStart, long windowEnd)
+	    throws IOException;
+    }
+
+    /**
+     * Goes through the data slice by slice in a pipeline of three stages that run at the same time:
+     * the next slice is loaded on a loader thread, the writers are written into the current slice on the calling thread,
+     * and the previous slice is encrypted and written by closing it on a flusher thread.
+     * Each stage holds at most one slice, so at most PIPELINE_SLICES slices are in memory at once,
+     * which the SliceBuffer pool keeps for reuse until the pipeline ends, and the flusher writes the slices in order.
+     *
+     * @param dataSize size of the data in bytes
+     * @param sliceSize size of a slice in bytes
+     * @param loader creates the slices
+     * @param router the router of the writers, or null if they write into the slices themselves
+     * @param writers the writers
+     **/
+    private static void writeSlices(long dataSize, long sliceSize, SliceLoader loader, HopRouter router,
+				    Collection<? extends Consumer<? super LargeBitfield>> writers)
+	throws IOException
+    {
+	ExecutorService loaderThread = newStageThread("ProtectedFileSlice.load");
+	ExecutorService flusherThread = newStageThread("ProtectedFileSlice.flush");
+	Future<ProtectedFileSlice> loading = null;
+	Future<?> flushing = null;
+	try {
+	    long firstEnd = Math.min(sliceSize, dataSize);
+	    loading = loaderThread.submit(() -> loader.load(0l, firstEnd));
+	    for(long start = 0l; start < dataSize; ) {
+		long end = Math.min(start+sliceSize, dataSize);
+		ProtectedFileSlice currentSlice = getStageResult(loading);
+		loading = null;
+		try {
+		    if(end < dataSize) {
+			long nextEnd = Math.min(end+sliceSize, dataSize);
+			loading = loaderThread.submit(() -> loader.load(end, nextEnd));
+		    }
+		    CommandLineInterface.showProgress();
+		    writeSlice(currentSlice, router, writers);
+		    if(null != flushing) {
+			getStageResult(flushing);
+		    }
+		}
+		catch(IOException | RuntimeException | Error e) {
+		    currentSlice.discard();
+		    throw e;
+		}
+		flushing = flusherThread.submit(() -> {
+			currentSlice.close();
+			return null;
+		    });
+		start = end;
+	    }
+	    if(null != flushing) {
+		Future<?> last = flushing;
+		flushing = null;
+		getStageResult(last);
+	    }
+	}
+	finally {
+	    loaderThread.shutdown();
+	    flusherThread.shutdown();
+	    if(null != loading) {
+		try {
+		    getStageResult(loading).discard();
+		}
+		catch(IOException | RuntimeException e) {
+		    // the failure that got us here is the one that matters
+		}
+	    }
+	    if(null != flushing) {
+		try {
+		    getStageResult(flushing);
+		}
+		catch(IOException | RuntimeException e) {
+		    // the failure that got us here is the one that matters
+		}
+	    }
+	    SliceBuffer.clearPool();
+	}
+    }
+
+    private static ExecutorService newStageThread(String name)
+    {
+	return Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	    });
+    }
+
+    /**
+     * Waits for a stage of writeSlices, unwrapping its failure.
+     **/
+    private static <T> T getStageResult(Future<T> stage)
+	throws IOException
+    {
+	try {
+	    return stage.get();
+	}
+	catch(InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("slice pipeline was interrupted.");
+	}
+	catch(ExecutionException ee) {
+	    if(ee.getCause() instanceof IOException) {
+		throw (IOException)ee.getCause();
+	    }
+	    if(ee.getCause() instanceof UncheckedIOException) {
+		throw new IOException(ee.getCause());
 	    }
+	    if(ee.getCause() instanceof RuntimeException) {
+		throw (RuntimeException)ee.getCause();
+	    }
+	    if(ee.getCause() instanceof Error) {
+		throw (Error)ee.getCause();
+	    }
+	    throw new IllegalStateException(ee.getCause());
 	}
     }
 
     /**
      * Creates a bitfile filled with randomness overwritten by the given BaseStegoOutputStreams.
-     * Iterates piece by piece of garbage collecting, generating memory source file contents,
+     * Iterates slice by slice of pooled off-heap memory, generating source file contents,
      * changing the memory to incorporate the steganographic changes that target that slice,
      * and then writing the changed slice into the new bitfile encrypted.
+     * The slices go through the pipeline of writeSlices, so generating, changing and writing overlap.
      *
      * @param dataSize size of target data output
      * @param destination the OutputStream to which contents are encrypted and written to
@@ -177,7 +384,7 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 					  Collection<? extends Consumer<? super LargeBitfield>> writers)
 	throws IOException
     {
-	final int sliceSize = getSliceSize();
+	final long sliceSize = getSliceSize();
 	
 	try(FileSalt outputFileSalt = new FileSalt(random)) {
 	    Metadata destinationMetadata = Metadata.createMetadata(random, dataSize);
@@ -190,29 +397,14 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 			try(CipherTrailOutputStream cipheredDestinationStream
 			    = new CipherTrailOutputStream(destination,
 							  new CipherTrail(outputFileSalt, destinationKey))) {
-			    try(FileSalt innerBitFileSalt = new FileSalt()) {
+			    try(FileSalt innerBitFileSalt = new FileSalt();
+				HopRouter router = routeWriters(dataSize, sliceSize, innerBitFileSalt, random, writers)) {
 				cipheredDestinationStream.write(innerBitFileSalt.bytes);
-				long start = 0l;
-				long end = Math.min(start+sliceSize, dataSize);
-				while(start<dataSize) {
-				    System.gc(); // run garbage collection because memory heavy operation in this loop.
-				    try(ProtectedFileSlice currentSlice
-					= new ProtectedFileSlice(random,
-								 cipheredDestinationStream,
-								 start, end, dataSize, innerBitFileSalt)) {
-					for(Consumer<? super LargeBitfield> currentTarget : writers) {
-					    try {
-						currentTarget.accept(currentSlice);
-						//currentTarget.accept((LargeBitfield)cb);
-					    }
-					    catch(UncheckedIOException e) {
-						throw new IOException(e);
-					    }
-					}
-				    }
-				    start = end;
-				    end = Math.min(start+sliceSize, dataSize);
-				}
+				writeSlices(dataSize, sliceSize,
+					    (start, end) -> new ProtectedFileSlice(random,
+										   cipheredDestinationStream,
+										   start, end, dataSize, innerBitFileSalt),
+					    router, writers);
 			    }
 			}
 		    }
@@ -222,11 +414,33 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 	}
     }
     /**
-     * @return 1/4 of either maximum memory we have or Integer.MAX_VALUE, which ever is smaller of them.
+     * Slices are held off-heap in SliceBuffers, which are not limited to the size of a Java array
+     * but count against the direct memory limit, not the heap.
+     * The slices of the pipeline take at most half of the direct memory, leaving the rest to the direct buffers of file I/O.
+     *
+     * @return 1/(2*PIPELINE_SLICES) of the direct memory we have
      **/
-    public static int getSliceSize()
+    public static long getSliceSize()
     {
-	return Math.toIntExact(Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE) / 4); // safe maximum array size
+	return getDirectMemoryBudget() / (2*PIPELINE_SLICES);
+    }
+
+    /**
+     * @return -XX:MaxDirectMemorySize, or the maximum heap size, which is the default of the JVM, if it is not set
+     **/
+    private static long getDirectMemoryBudget()
+    {
+	try {
+	    HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+	    long configured = Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+	    if(configured > 0l) {
+		return configured;
+	    }
+	}
+	catch(IllegalArgumentException | NullPointerException e) {
+	    // not a HotSpot JVM, fall back to its default
+	}
+	return Runtime.getRuntime().maxMemory();
     }
     /*
     private static void trackOutputPosition(OutputStream out)
@@ -244,9 +458,10 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
     }
     */
     /**
-     * Iterates piece by piece of garbage collecting, reading and decrypting into memory source file contents,
+     * Iterates slice by slice of pooled off-heap memory, reading and decrypting source file contents into it,
      * changing the memory to incorporate the steganographic changes that target that slice,
      * and then writing the changed slice into the new bitfile encrypted.
+     * The slices go through the pipeline of writeSlices, so reading, changing and writing overlap.
      *
      * @param openedInnerBitfile the opened ReadonlyBitFile which the contents are read and decrypted from
      * @param destination the OutputStream to which contents are encrypted and written to
@@ -266,7 +481,7 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 				 Collection<? extends Consumer<? super LargeBitfield>> writers)
 	throws IOException
     {
-	final int sliceSize = getSliceSize();
+	final long sliceSize = getSliceSize();
 	try(FileSalt outputFileSalt = new FileSalt(random)) {
 	    Metadata destinationMetadata = Metadata.createMetadata(random, openedInnerBitfile.dataLength);
 	    try(Nonce nonce = new Nonce(random,minimumNonceSize)) {
@@ -279,27 +494,13 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 							  new CipherTrail(outputFileSalt, destinationKey))) {
 			    FileSalt innerBitFileSalt = openedInnerBitfile.getFileSalt();
 			    cipheredDestinationStream.write(innerBitFileSalt.bytes);
-			    long start = 0l;
-			    long end = Math.min(start+sliceSize, openedInnerBitfile.dataLength);
-			    while(start<openedInnerBitfile.dataLength) {
-				CommandLineInterface.showProgress();
-				System.gc(); // run garbage collection because memory heavy operation in this loop.
-				try(ProtectedFileSlice currentSlice
-				    = new ProtectedFileSlice(openedInnerBitfile,
-							     //inputMetadata,
-							     cipheredDestinationStream,
-							     start, end, outputFileSalt)) {
-				    for(Consumer<? super ProtectedFileSlice> currentTarget : writers) {
-					try {
-					    currentTarget.accept(currentSlice);
-					}
-					catch(UncheckedIOException e) {
-					    throw new IOException(e);
-					}
-				    }
-				}
-				start = end;
-				end = Math.min(start+sliceSize, openedInnerBitfile.dataLength);
+			    try(HopRouter router = routeWriters(openedInnerBitfile.dataLength, sliceSize, outputFileSalt, random, writers)) {
+				writeSlices(openedInnerBitfile.dataLength, sliceSize,
+					    (start, end) -> new ProtectedFileSlice(openedInnerBitfile,
+										   //inputMetadata,
+										   cipheredDestinationStream,
+										   start, end, outputFileSalt),
+					    router, writers);
 			    }
 			}
 		    }
@@ -308,4 +509,104 @@ public class ProtectedFileSlice implements LargeBitfield, AutoCloseable
 	    }
 	}
     }
+
+    /**
+     * Testing methods
+     **/
+
+    /**
+     * @returns a SecureRandom whose bytes depend only on seed, so that the contents of a slice can be made alike twice
+     **/
+    static SecureRandom seededRandom(long seed)
+    {
+	return new SecureRandom() {
+	    private final Random source = new Random(seed);
+	    @Override
+	    public void nextBytes(byte[] bytes)
+	    {
+		source.nextBytes(bytes);
+	    }
+	};
+    }
+
+    /**
+     * Writes the same bits into slices of a data area through the pipeline of writeSlices and one slice after another,
+     * and compares the output.
+     *
+     * @param dataSize size of the data area in bytes
+     * @param sliceSize size of a slice in bytes
+     * @param isRouted if true, the writers write once into a HopRouter, otherwise into every slice
+     * @returns true if the outputs are the same
+     **/
+    private static boolean compareToSequentialSlices(long dataSize, long sliceSize, boolean isRouted)
+    {
+	Consumer<LargeBitfield> writer = bitfield -> {
+	    Random random = new Random(1l);
+	    for(int batch = 0; batch < 20; batch++) {
+		long[] addresses = new long[64];
+		long[] states = new long[] { random.nextLong() };
+		Set<Long> used = new HashSet<Long>(); // a batch sets each bit once, its order being undefined
+		for(int i = 0; i < addresses.length; ) {
+		    addresses[i] = random.nextLong();
+		    if(used.add(Math.floorMod(addresses[i], dataSize))) {
+			i++;
+		    }
+		}
+		try {
+		    bitfield.setBits(addresses, states, addresses.length);
+		}
+		catch(IOException ioe) {
+		    throw new UncheckedIOException(ioe);
+		}
+	    }
+	};
+	List<Consumer<LargeBitfield>> writers = Arrays.asList(writer);
+	try(FileSalt salt = new FileSalt(seededRandom(0l))) {
+	    ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+	    for(long start = 0; start < dataSize; start += sliceSize) {
+		try(ProtectedFileSlice slice = new ProtectedFileSlice(seededRandom(start), sequential,
+								      start, Math.min(start + sliceSize, dataSize), dataSize, salt)) {
+		    writer.accept(slice);
+		}
+	    }
+	    ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+	    try(HopRouter router = isRouted ? routeWriters(dataSize, sliceSize, salt, new SecureRandom(), writers) : null) {
+		writeSlices(dataSize, sliceSize,
+			    (start, end) -> new ProtectedFileSlice(seededRandom(start), pipelined, start, end, dataSize, salt),
+			    router, writers);
+	    }
+	    boolean result = Arrays.equals(sequential.toByteArray(), pipelined.toByteArray());
+	    System.out.println(""+dataSize+" bytes in slices of "+sliceSize+(isRouted ? " routed" : "")+": "
+			       +(result ? "same" : "different")+" as sequential slices.");
+	    return result;
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    return false;
+	}
+    }
+
+    /**
+     * main method for testing.
+     *
+     * runs tests and reports their success rate.
+     **/
+    public static void main(String[] args)
+    {
+	int successes = 0;
+	int trials = 0;
+
+	for(boolean isRouted : new boolean[] { false, true }) {
+	    trials++;
+	    if(compareToSequentialSlices(10000l, 3000l, isRouted)) successes++;
+
+	    trials++;
+	    if(compareToSequentialSlices(9000l, 3000l, isRouted)) successes++;
+
+	    trials++;
+	    if(compareToSequentialSlices(1000l, 7l, isRouted)) successes++;
+	}
+
+	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
+    }
 }
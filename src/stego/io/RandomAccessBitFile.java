@@ -1,26 +1,97 @@
 package stego.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.IntStream;
 import java.security.SecureRandom;
+import stego.crypto.FileSalt;
 
 /**
  * @author syy 2022-06-25
  *
  * Class to read and write parallel into a File.
+ *
+ * All threads share one FileChannel and read and write it by position, so they do not wait for each other
+ * except on the LockMap lock of the byte they change. How soon writes reach the storage device is chosen with Durability.
+ * FileChannel I/O is interruptible: a thread interrupted inside getBit, setBit or commit() closes the channel
+ * with ClosedByInterruptException, after which every thread's access fails and unforced writes are lost.
+ *
+ * With write-back, bit changes are instead collected into dirty pages in memory, and a page is read, changed
+ * and written once for all of its changes when the dirty pages are flushed in ascending file order.
+ * Flushing happens when there are too many dirty pages, once the time window has passed, and on commit() and close().
  **/
 
 
-public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
+public class RandomAccessBitFile implements BitFile
 {
     public final byte LOW_BIT_MASK = (byte)0x7;
-    
+
+    /**
+     * How soon writes are forced to the storage device.
+     **/
+    public enum Durability
+    {
+        /**
+         * Every write is on the device, with the file metadata, before setBit returns, like a RandomAccessFile in "rws" mode.
+         **/
+        SYNC,
+        /**
+         * Writes are forced in groups, once the group has the given amount of writes or is as old as the given time window,
+         * and on commit() and close().
+         **/
+        GROUP_COMMIT,
+        /**
+         * Writes are left to the operating system until commit() or close().
+         **/
+        ON_CLOSE;
+    }
+    public static final int DEFAULT_GROUP_COMMIT_WRITES = 4096;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 1000l;
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_MAX_DIRTY_PAGES = 4096;
+
+    /**
+     * Bits changed in one page but not yet written, as masks of the bits set and of the bits cleared.
+     * Guarded by its own monitor. A flushed page is out of the map and takes no more changes.
+     **/
+    private static class DirtyPage
+    {
+        private final byte[] setMask;
+        private final byte[] clearMask;
+        private boolean isFlushed = false;
+        private DirtyPage(int length)
+        {
+            setMask = new byte[length];
+            clearMask = new byte[length];
+        }
+    }
+
     private final File targetFile;
     private final long fileLength;
-    private LockMap<Long> byteLockMap = new LockMap<Long>();
-    private boolean isClosed = false;
-    private Set<RandomAccessFile> openFiles = Collections.synchronizedSet(new HashSet<RandomAccessFile>());
+    private final LockMap<Long> byteLockMap = new LockMap<Long>();
+    private volatile boolean isClosed = false;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final int groupCommitWrites;
+    private final AtomicLong pendingWrites = new AtomicLong();
+    private final AtomicBoolean isForcing = new AtomicBoolean();
+    private final ScheduledExecutorService committer;
+    private volatile IOException commitFailure = null;
+    private final int pageSize;
+    private final int maxDirtyPages;
+    private final ConcurrentSkipListMap<Long, DirtyPage> dirtyPages = new ConcurrentSkipListMap<Long, DirtyPage>();
+    private final AtomicInteger dirtyPageCount = new AtomicInteger();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private FileSalt fileSalt = null;
 
     /**
      * Checks if this RandomAccessBitFile is closed and throws IOException if it is
@@ -36,34 +107,72 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
     }
 
     /**
-     * Opens a new RandomAccessFile to the target File for a Thread to read and write on and attaches it to list of open files to be automatically closed on close().
+     * Constructs a new RandomAccessBitFile to read and write parallel on target File, forcing every write like before.
      *
-     * @returns the new RandomAccessFile or null if this RandomAccessBitFile has already been closed.
+     * @returns new RandomAccessBitFile
      **/
-    private synchronized RandomAccessFile createRandomAccessFile()
+    public RandomAccessBitFile(File raf)
+        throws IOException
     {
-        if(isClosed) return null;
-        try {
-        RandomAccessFile raf = new RandomAccessFile(targetFile, "rws");
-        openFiles.add(raf);
-        return raf;
-        }
-        catch(IOException ioe) {
-            return null;
-        }
+        this(raf, Durability.SYNC);
+    }
+
+    public RandomAccessBitFile(File raf, Durability durability)
+        throws IOException
+    {
+        this(raf, durability, DEFAULT_GROUP_COMMIT_WRITES, DEFAULT_GROUP_COMMIT_MILLIS);
     }
 
-    private ThreadLocal<RandomAccessFile> threadLocalFile = ThreadLocal.withInitial(() -> createRandomAccessFile());
+    public RandomAccessBitFile(File raf, Durability durability, int groupCommitWrites, long groupCommitMillis)
+        throws IOException
+    {
+        this(raf, durability, groupCommitWrites, groupCommitMillis, 0, 0);
+    }
 
     /**
      * Constructs a new RandomAccessBitFile to read and write parallel on target File.
      *
+     * @param raf the target File
+     * @param durability how soon writes are forced to the device
+     * @param groupCommitWrites amount of writes after which a GROUP_COMMIT group is forced
+     * @param groupCommitMillis time after which writes of a GROUP_COMMIT group are forced and dirty pages are flushed, even if no more writes come
+     * @param pageSize size of the dirty pages in bytes, or 0 to write every bit straight to the file
+     * @param maxDirtyPages amount of dirty pages after which they are flushed
      * @returns new RandomAccessBitFile
      **/
-    public RandomAccessBitFile(File raf)
+    public RandomAccessBitFile(File raf, Durability durability, int groupCommitWrites, long groupCommitMillis,
+                               int pageSize, int maxDirtyPages)
+        throws IOException
     {
         this.targetFile = raf;
+        this.pageSize = pageSize;
+        this.maxDirtyPages = maxDirtyPages;
         this.fileLength = targetFile.length();
+        this.durability = durability;
+        this.groupCommitWrites = groupCommitWrites;
+        List<OpenOption> options = new ArrayList<OpenOption>(Arrays.asList(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if(Durability.SYNC == durability) {
+            options.add(StandardOpenOption.SYNC);
+        }
+        this.channel = FileChannel.open(targetFile.toPath(), options.toArray(new OpenOption[0]));
+        if((Durability.GROUP_COMMIT == durability) || (pageSize > 0)) {
+            committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "RandomAccessBitFile.commit");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            committer.scheduleWithFixedDelay(() -> {
+                    try {
+                        flushDirtyPages();
+                        commitPending();
+                    }
+                    catch(IOException ioe) {
+                        commitFailure = ioe;
+                    }
+                }, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+        } else {
+            committer = null;
+        }
     }
 
     public static void createNewBitFile(File raf, long size)
@@ -90,32 +199,113 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
     }
 
     /**
-     * Closes this RandomAccessBitFile and all of its RandomAccessFiles that are used to read and write the target File.
+     * Gets the salt, which is the first FileSalt.SIZE bytes of the file like in ReadonlyBitFile.
      *
-     * @throws IOException if closing one of the RandomAccessFiles throws IOException.
+     * @return the salt
+     **/
+    public synchronized FileSalt getFileSalt()
+    {
+        if(null == fileSalt) {
+            byte[] salt = new byte[FileSalt.SIZE];
+            try {
+                readFully(0l, ByteBuffer.wrap(salt));
+            }
+            catch(IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            fileSalt = new FileSalt(salt);
+        }
+        return fileSalt;
+    }
+
+    private void readFully(long position, ByteBuffer target)
+        throws IOException
+    {
+        while(target.hasRemaining()) {
+            if(channel.read(target, position + target.position()) < 0) {
+                throw new EOFException("file "+targetFile+" ended at "+(position + target.position())+".");
+            }
+        }
+    }
+
+    /**
+     * Forces the writes made so far to the storage device.
+     *
+     * @throws IOException if forcing fails
+     **/
+    public void commit()
+        throws IOException
+    {
+        throwIfClosed();
+        flushDirtyPages();
+        pendingWrites.set(0l);
+        channel.force(true);
+    }
+
+    /**
+     * Forces the pending writes unless another thread is forcing them already.
+     **/
+    private void commitPending()
+        throws IOException
+    {
+        if((0l == pendingWrites.get()) || !isForcing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            pendingWrites.set(0l);
+            channel.force(true);
+        }
+        finally {
+            isForcing.set(false);
+        }
+    }
+
+    /**
+     * Stops the commit thread and waits for a commit in progress to end.
+     * The thread is not interrupted with shutdownNow(), because an interrupt inside channel.force
+     * would close the shared channel, and close() could then not force the remaining writes.
+     **/
+    private void stopCommitter()
+    {
+        if(null == committer) {
+            return;
+        }
+        committer.shutdown();
+        try {
+            committer.awaitTermination(1l, TimeUnit.MINUTES);
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes this RandomAccessBitFile and its FileChannel, forcing the writes that are not forced yet.
+     *
+     * @throws IOException if forcing or closing the FileChannel throws IOException.
      **/
     public synchronized void close()
         throws IOException
     {
         if(isClosed) return;
         isClosed = true;
-        Optional<Exception> oe =
-            openFiles.stream()
-            .map(f -> {
-                    try {
-                        f.close();
-                    }
-                    catch(Exception e) {
-                        return e;
-                    }
-                    return null;
-                })
-            .filter(e -> null != e)
-            .findAny();
-        if(oe.isPresent()) {
-            throw new IOException(oe.get());
-        }           
-        openFiles.clear();
+        byteLockMap.close();
+        try {
+            stopCommitter();
+            flushDirtyPages();
+            if(Durability.SYNC != durability) {
+                channel.force(true);
+            }
+        }
+        finally {
+            channel.close();
+            if(null != fileSalt) {
+                fileSalt.close();
+            }
+        }
+        if(null != commitFailure) {
+            throw commitFailure;
+        }
     }
     
     /**
@@ -124,44 +314,266 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
      * @param address target address
      * @return state of bit in address
      **/
+    @SuppressWarnings("try")
     public boolean getBit(long address)
         throws IOException
     {
+        throwIfClosed();
         long byteAddress = Math.floorMod((address / 8), fileLength);
-        try(LockMap.Lock myLock = byteLockMap.lock(byteAddress)) {
-            RandomAccessFile raf = threadLocalFile.get();
+        if(pageSize > 0) {
+            return getBufferedBit(byteAddress, (byte)(1 << (LOW_BIT_MASK & address)));
+        }
+        try(LockMap<Long>.Lock myLock = byteLockMap.lock(byteAddress)) {
             byte bitAddress = (byte)(LOW_BIT_MASK & address);
             byte bitMask = (byte)(1 << bitAddress);
-            raf.seek(byteAddress);
-            boolean result = 0 != (raf.readByte() & bitMask);
+            ByteBuffer current = ByteBuffer.allocate(1);
+            readFully(byteAddress, current);
+            boolean result = 0 != (current.get(0) & bitMask);
             return result;
         }
     }
 
     /**
-     * Writes a bit into target address. Blocks if the underlying ParallelByteBuffer blocks.
+     * Writes a bit into target address. Threads writing into different bytes do not wait for each other.
      *
      * @param address target address in bits
      * @param state if true, sets the bit, otherwise clears it
      **/
-    public synchronized void setBit(long address, boolean state)
+    @SuppressWarnings("try")
+    public void setBit(long address, boolean state)
         throws IOException
     {
+        throwIfClosed();
+        if(null != commitFailure) {
+            throw commitFailure;
+        }
         long byteAddress = Math.floorMod((address / 8), fileLength);
-        try(LockMap.Lock myLock = byteLockMap.lock(byteAddress)) {
-            RandomAccessFile raf = threadLocalFile.get();
+        if(pageSize > 0) {
+            setBufferedBit(byteAddress, (byte)(1 << (LOW_BIT_MASK & address)), state);
+            return;
+        }
+        try(LockMap<Long>.Lock myLock = byteLockMap.lock(byteAddress)) {
             byte bitAddress = (byte)(LOW_BIT_MASK & address);
             byte bitMaskOn = (byte)(1 << bitAddress);
             byte bitMaskOff = (byte)(255 - bitMaskOn);
-            raf.seek(byteAddress);
-            byte currentByte = raf.readByte();
+            ByteBuffer current = ByteBuffer.allocate(1);
+            readFully(byteAddress, current);
+            byte currentByte = current.get(0);
             if(state) {
                 currentByte |= bitMaskOn;
             } else {
                 currentByte &= bitMaskOff;
             }
-            raf.seek(byteAddress);
-            raf.writeByte(currentByte);
+            current.put(0, currentByte);
+            current.rewind();
+            while(current.hasRemaining()) {
+                channel.write(current, byteAddress);
+            }
+        }
+        if((Durability.GROUP_COMMIT == durability) && (pendingWrites.incrementAndGet() >= groupCommitWrites)) {
+            commitPending();
+        }
+    }
+
+    /**
+     * Writes count bits like setBit for each of them. Without dirty pages, the bytes of the batch are locked
+     * together with one lockAll, and each run of adjacent bytes is read and written once for all of its bits.
+     *
+     * @param addresses target addresses in bits
+     * @param states the states as a bitset, the state of bit i in bit i%64 of states[i/64]
+     * @param count amount of bits
+     **/
+    @SuppressWarnings("try")
+    public void setBits(long[] addresses, long[] states, int count)
+        throws IOException
+    {
+        if(pageSize > 0) {
+            BitFile.super.setBits(addresses, states, count);
+            return;
+        }
+        throwIfClosed();
+        if(null != commitFailure) {
+            throw commitFailure;
+        }
+        // byte address, bit address and state packed so that sorting groups the bits by byte
+        long[] entries = new long[count];
+        List<Long> byteAddresses = new ArrayList<Long>();
+        for(int i = 0; i < count; i++) {
+            long state = (states[i / Long.SIZE] >>> (i % Long.SIZE)) & 1l;
+            long byteAddress = Math.floorMod((addresses[i] / 8), fileLength);
+            entries[i] = (byteAddress << 4) | ((LOW_BIT_MASK & addresses[i]) << 1) | state;
+        }
+        Arrays.sort(entries);
+        for(int i = 0; i < count; i++) {
+            if((0 == i) || ((entries[i] >>> 4) != (entries[i-1] >>> 4))) {
+                byteAddresses.add(entries[i] >>> 4);
+            }
+        }
+        int writes = 0;
+        try(LockMap<Long>.Lock myLock = byteLockMap.lockAll(byteAddresses)) {
+            for(int i = 0; i < count; ) {
+                long runStart = entries[i] >>> 4;
+                long runEnd = runStart;
+                int runEntries = i;
+                while((runEntries < count) && ((entries[runEntries] >>> 4) <= runEnd + 1)) {
+                    runEnd = entries[runEntries] >>> 4;
+                    runEntries++;
+                }
+                ByteBuffer run = ByteBuffer.allocate(Math.toIntExact(runEnd - runStart + 1));
+                readFully(runStart, run);
+                for(; i < runEntries; i++) {
+                    int offset = (int)((entries[i] >>> 4) - runStart);
+                    byte bitMask = (byte)(1 << ((entries[i] >>> 1) & LOW_BIT_MASK));
+                    if(0 != (entries[i] & 1l)) {
+                        run.put(offset, (byte)(run.get(offset) | bitMask));
+                    } else {
+                        run.put(offset, (byte)(run.get(offset) & ~bitMask));
+                    }
+                }
+                run.rewind();
+                while(run.hasRemaining()) {
+                    channel.write(run, runStart + run.position());
+                }
+                writes++;
+            }
+        }
+        finally {
+            Arrays.fill(entries, 0l);
+        }
+        if((Durability.GROUP_COMMIT == durability) && (pendingWrites.addAndGet(writes) >= groupCommitWrites)) {
+            commitPending();
+        }
+    }
+
+    /**
+     * @return amount of byte locks that had to wait for another thread
+     **/
+    public long getLockContentionCount()
+    {
+        return byteLockMap.getContentionCount();
+    }
+
+    /**
+     * @return total time the contended byte locks waited, in nanoseconds
+     **/
+    public long getLockWaitNanos()
+    {
+        return byteLockMap.getWaitNanos();
+    }
+
+    /**
+     * Reads a bit from its dirty page if it was changed there, otherwise from the file.
+     **/
+    private boolean getBufferedBit(long byteAddress, byte bitMask)
+        throws IOException
+    {
+        long pageStart = byteAddress - byteAddress % pageSize;
+        int offset = (int)(byteAddress - pageStart);
+        while(true) {
+            DirtyPage page = dirtyPages.get(pageStart);
+            if(null == page) {
+                ByteBuffer current = ByteBuffer.allocate(1);
+                readFully(byteAddress, current);
+                return 0 != (current.get(0) & bitMask);
+            }
+            synchronized(page) {
+                if(page.isFlushed) {
+                    continue; // its changes are in the file now, and a newer page may have replaced it
+                }
+                if(0 != (page.setMask[offset] & bitMask)) {
+                    return true;
+                }
+                if(0 != (page.clearMask[offset] & bitMask)) {
+                    return false;
+                }
+                ByteBuffer current = ByteBuffer.allocate(1);
+                readFully(byteAddress, current);
+                return 0 != (current.get(0) & bitMask);
+            }
+        }
+    }
+
+    /**
+     * Records a bit change into its dirty page, flushing the dirty pages if there are too many of them.
+     **/
+    private void setBufferedBit(long byteAddress, byte bitMask, boolean state)
+        throws IOException
+    {
+        long pageStart = byteAddress - byteAddress % pageSize;
+        int offset = (int)(byteAddress - pageStart);
+        while(true) {
+            DirtyPage page = dirtyPages.get(pageStart);
+            if(null == page) {
+                // ConcurrentSkipListMap.computeIfAbsent may run its function more than once, so count only the page that got in
+                DirtyPage created = new DirtyPage((int)Math.min(pageSize, fileLength - pageStart));
+                page = dirtyPages.putIfAbsent(pageStart, created);
+                if(null == page) {
+                    dirtyPageCount.incrementAndGet();
+                    page = created;
+                }
+            }
+            synchronized(page) {
+                if(page.isFlushed) {
+                    continue;
+                }
+                if(state) {
+                    page.setMask[offset] |= bitMask;
+                    page.clearMask[offset] &= ~bitMask;
+                } else {
+                    page.clearMask[offset] |= bitMask;
+                    page.setMask[offset] &= ~bitMask;
+                }
+                break;
+            }
+        }
+        if((dirtyPageCount.get() >= maxDirtyPages) && flushLock.tryLock()) {
+            try {
+                flushDirtyPages();
+            }
+            finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the dirty pages into the file in ascending order, each with one read and one write.
+     * Flushes run one at a time, so a page is never written from older contents than an earlier flush left.
+     **/
+    private void flushDirtyPages()
+        throws IOException
+    {
+        if(pageSize < 1) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            int written = 0;
+            for(Map.Entry<Long, DirtyPage> entry : dirtyPages.entrySet()) {
+                DirtyPage page = entry.getValue();
+                synchronized(page) {
+                    ByteBuffer contents = ByteBuffer.allocate(page.setMask.length);
+                    readFully(entry.getKey(), contents);
+                    byte[] bytes = contents.array();
+                    for(int i = 0; i < bytes.length; i++) {
+                        bytes[i] = (byte)((bytes[i] | page.setMask[i]) & ~page.clearMask[i]);
+                    }
+                    contents.rewind();
+                    while(contents.hasRemaining()) {
+                        channel.write(contents, entry.getKey() + contents.position());
+                    }
+                    page.isFlushed = true;
+                    dirtyPages.remove(entry.getKey(), page);
+                    dirtyPageCount.decrementAndGet();
+                }
+                written++;
+            }
+            if((Durability.GROUP_COMMIT == durability) && (pendingWrites.addAndGet(written) >= groupCommitWrites)) {
+                commitPending();
+            }
+        }
+        finally {
+            flushLock.unlock();
         }
     }
 
@@ -184,11 +596,12 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
         return
             ((long)i)*i*i+((long)i)*i+i;
     }
-    private static boolean RandomAccessWriteTest(File f)
+    private static boolean RandomAccessWriteTest(File f, Durability durability, int pageSize)
     {
         final long fileLength = f.length();
         try (RandomAccessBitFile bitFile
-             = new RandomAccessBitFile(f)) {
+             = new RandomAccessBitFile(f, durability, DEFAULT_GROUP_COMMIT_WRITES, DEFAULT_GROUP_COMMIT_MILLIS,
+                                       pageSize, 2)) {
             Optional<IOException> oioe =
                 IntStream.range(0,100000).parallel()
                 .peek(i -> {
@@ -218,6 +631,96 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
         return true;
     }
 
+    /**
+     * Writes the bits of RandomAccessWriteTest in batches of setBits from many threads at once,
+     * so that batches lock overlapping bytes, and reports the contention of the byte locks.
+     **/
+    private static boolean RandomAccessBatchWriteTest(File f, Durability durability)
+    {
+        final long fileLength = f.length();
+        final int batchSize = 100;
+        try (RandomAccessBitFile bitFile = new RandomAccessBitFile(f, durability)) {
+            Optional<IOException> oioe =
+                IntStream.range(0,100000/batchSize).parallel()
+                .mapToObj(batch -> {
+                        long[] addresses = new long[batchSize];
+                        long[] states = new long[(batchSize + Long.SIZE - 1) / Long.SIZE];
+                        for(int j = 0; j < batchSize; j++) {
+                            int i = batch*batchSize + j;
+                            addresses[j] = addressTransformation(i);
+                            if(0 != Long.bitCount(addressTransformation(i)%fileLength)%2) {
+                                states[j / Long.SIZE] |= 1l << (j % Long.SIZE);
+                            }
+                        }
+                        try {
+                            bitFile.setBits(addresses, states, batchSize);
+                            return null;
+                        } catch (IOException ioe) {
+                            return ioe;
+                        }
+                    })
+                .filter(e -> null != e)
+                .findAny();
+            if(oioe.isPresent()) {
+                oioe.get().printStackTrace();
+                return false;
+            }
+            System.out.println("byte locks contended "+bitFile.getLockContentionCount()+" times, waited "
+                               +bitFile.getLockWaitNanos()/1000000+" ms");
+        }
+        catch (IOException closeException) {
+            closeException.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets bits of the same few pages from many threads at once, so that pages are created by racing writers,
+     * and checks that the count of dirty pages matches the pages and returns to 0 after close().
+     **/
+    private static boolean DirtyPageCountTest(File f)
+    {
+        final long fileLength = f.length();
+        try {
+            for(int round = 0; round < 50; round++) {
+                RandomAccessBitFile bitFile
+                    = new RandomAccessBitFile(f, Durability.ON_CLOSE, DEFAULT_GROUP_COMMIT_WRITES, DEFAULT_GROUP_COMMIT_MILLIS,
+                                              DEFAULT_PAGE_SIZE, Integer.MAX_VALUE);
+                final int round0 = round;
+                Optional<IOException> oioe =
+                    IntStream.range(0,10000).parallel()
+                    .mapToObj(i -> {
+                            try {
+                                bitFile.setBit(addressTransformation(i+round0), 0 == i%2);
+                                return null;
+                            } catch (IOException ioe) {
+                                return ioe;
+                            }
+                        })
+                    .filter(e -> null != e)
+                    .findAny();
+                if(oioe.isPresent()) {
+                    oioe.get().printStackTrace();
+                    return false;
+                }
+                int pages = bitFile.dirtyPages.size();
+                int counted = bitFile.dirtyPageCount.get();
+                bitFile.close();
+                if((pages != counted) || (0 != bitFile.dirtyPageCount.get())) {
+                    System.out.println("round "+round+": "+pages+" dirty pages counted as "+counted
+                                       +", "+bitFile.dirtyPageCount.get()+" left after close");
+                    return false;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            ioe.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
     private static boolean RandomAccessReadTest(File f)
     {
         final long fileLength = f.length();
@@ -269,20 +772,50 @@ public class RandomAccessBitFile implements LargeBitfield, AutoCloseable
         }
         File testFile = new File(testFileName);
         System.out.println("Testfile: '"+testFileName+"' "+testFileLength+" bytes.");
-        initializeTestFile(testFile, testFileLength);
         
         int trials = 0;
         int successes = 0;
 
-        trials++;
-        if(RandomAccessWriteTest(testFile)) {
-            System.out.println("Test file write passed.");
-            successes++;
+        for(int pageSize : new int[] { 0, DEFAULT_PAGE_SIZE }) {
+            for(Durability durability : Durability.values()) {
+                initializeTestFile(testFile, testFileLength);
+
+                trials++;
+                long start = System.nanoTime();
+                if(RandomAccessWriteTest(testFile, durability, pageSize)) {
+                    System.out.println("Test file write with "+durability+", page size "+pageSize+" passed in "+(System.nanoTime()-start)/1000000+" ms.");
+                    successes++;
+                }
+
+                trials++;
+                if(RandomAccessReadTest(testFile)) {
+                    System.out.println("Test file read after "+durability+", page size "+pageSize+" passed.");
+                    successes++;
+                }
+            }
         }
 
+        for(Durability durability : Durability.values()) {
+            initializeTestFile(testFile, testFileLength);
+
+            trials++;
+            long start = System.nanoTime();
+            if(RandomAccessBatchWriteTest(testFile, durability)) {
+                System.out.println("Test file batch write with "+durability+" passed in "+(System.nanoTime()-start)/1000000+" ms.");
+                successes++;
+            }
+
+            trials++;
+            if(RandomAccessReadTest(testFile)) {
+                System.out.println("Test file read after batch write with "+durability+" passed.");
+                successes++;
+            }
+        }
+
+        initializeTestFile(testFile, testFileLength);
         trials++;
-        if(RandomAccessReadTest(testFile)) {
-            System.out.println("Test file read passed.");
+        if(DirtyPageCountTest(testFile)) {
+            System.out.println("Test dirty page count passed.");
             successes++;
         }
 
@@ -25,6 +25,8 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
     private ThreadLocal<InputStream> threadLocalInputStream
 	= new ThreadLocal<InputStream>().withInitial(this);
     private Set<InputStream> openInputStreams = Collections.synchronizedSet(new HashSet<InputStream>());
+    private final PositionalCipherReader positionalReader;
+    private final DecryptedPageCache pageCache;
     private boolean isClosed = false;
 
     public final long dataLength;
@@ -83,6 +85,22 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 
     public static ReadonlyBitFile read(File file, char[] passcode, SecureRandom random)
 	throws IOException
+    {
+	return read(file, passcode, random, null);
+    }
+
+    /**
+     * Opens the inner bitfield of file with passcode, trying the nonce recorded in keyring before searching the nonce,
+     * and recording the nonce into keyring and saving it after a search.
+     *
+     * @param file the bitfile
+     * @param passcode the passcode of the bitfile
+     * @param random source of the start points of the nonce search
+     * @param keyring the keyring or null to always search
+     * @return the inner bitfield
+     **/
+    public static ReadonlyBitFile read(File file, char[] passcode, SecureRandom random, Keyring keyring)
+	throws IOException
     {
 	try(FileInputStream fis = new FileInputStream(file)) {
 	    try(Metadata metadata = Metadata.read(fis)) {
@@ -97,9 +115,11 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 			    catch(IOException ioe) {
 				throw new UncheckedIOException(ioe);
 			    }
-			});
+			},
+			new PositionalCipherReader(file, Metadata.Field.size()));
 		FileSalt filesalt = outerFile.getFileSalt();
-		ReadonlyBitFile result = outerFile.openInnerReadonlyBitFile(metadata.open(filesalt, passcode, random));
+		Metadata opener = metadata.open(filesalt, passcode, random, keyring);
+		ReadonlyBitFile result = outerFile.openInnerReadonlyBitFile(opener);
 		return result;
 	    }
 	}
@@ -121,7 +141,8 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 			    catch(IOException ioe) {
 				throw new UncheckedIOException(ioe);
 			    }
-			});
+			},
+			new PositionalCipherReader(file, Metadata.Field.size()));
 		return outerFile.openInnerReadonlyBitFile(opener);
 	    }
 	}
@@ -135,6 +156,48 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
     public ReadonlyBitFile(long length, Supplier<InputStream> initialInputStreamSupplier)
 	throws IOException
     {
+	this(length, initialInputStreamSupplier, null);
+    }
+
+    public ReadonlyBitFile(long length, Supplier<InputStream> initialInputStreamSupplier, PositionalCipherReader positionalReader)
+	throws IOException
+    {
+	this(length, initialInputStreamSupplier, positionalReader,
+	     DecryptedPageCache.DEFAULT_PAGE_SIZE, DecryptedPageCache.DEFAULT_CAPACITY_PAGES);
+    }
+
+    /**
+     * Constructs a new ReadonlyBitFile whose bits are read by position through positionalReader.
+     * The streams of initialInputStreamSupplier are still used for reading the salt and for get().
+     *
+     * @param length length of the bitfield including its salt
+     * @param initialInputStreamSupplier supplier of streams positioned at the start of the salt
+     * @param positionalReader reader whose position 0 is the start of the salt, or null to read bits through the streams
+     * @param cachePageSize size of the decrypted pages cached in front of positionalReader
+     * @param cacheCapacityPages maximum amount of cached pages, or 0 to read every bit through positionalReader
+     * @returns new ReadonlyBitFile
+     **/
+    public ReadonlyBitFile(long length, Supplier<InputStream> initialInputStreamSupplier, PositionalCipherReader positionalReader,
+			   int cachePageSize, int cacheCapacityPages)
+	throws IOException
+    {
+	this(length, initialInputStreamSupplier, positionalReader, cachePageSize, cacheCapacityPages, DecryptedPageCache.Eviction.LRU);
+    }
+
+    /**
+     * Constructs a new ReadonlyBitFile like above, with cacheEviction choosing which cached pages are dropped.
+     *
+     * @param cacheEviction order in which the cache drops its pages when full
+     **/
+    public ReadonlyBitFile(long length, Supplier<InputStream> initialInputStreamSupplier, PositionalCipherReader positionalReader,
+			   int cachePageSize, int cacheCapacityPages, DecryptedPageCache.Eviction cacheEviction)
+	throws IOException
+    {
+	this.positionalReader = positionalReader;
+	this.pageCache
+	    = ((null == positionalReader) || (cacheCapacityPages < 1))
+	    ? null
+	    : new DecryptedPageCache(positionalReader, cachePageSize, cacheCapacityPages, cacheEviction);
 	this.inputStreamSupplier = new FileSaltSkipper(initialInputStreamSupplier);
 	//this.targetFile = raf;
 	this.dataLength = length-FileSalt.SIZE;
@@ -147,6 +210,38 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
     public ReadonlyBitFile openInnerReadonlyBitFile(Metadata opener)
 	throws IOException
     {
+	return openInnerReadonlyBitFile(opener, DecryptedPageCache.DEFAULT_PAGE_SIZE, DecryptedPageCache.DEFAULT_CAPACITY_PAGES);
+    }
+
+    /**
+     * Opens the inner bitfield that is encrypted with the key in opener.
+     *
+     * @param opener the Metadata containing the key of the inner bitfield
+     * @param cachePageSize size of the decrypted pages cached of the inner bitfield
+     * @param cacheCapacityPages maximum amount of cached pages, or 0 for no caching
+     * @return the inner bitfield
+     **/
+    public ReadonlyBitFile openInnerReadonlyBitFile(Metadata opener, int cachePageSize, int cacheCapacityPages)
+	throws IOException
+    {
+	return openInnerReadonlyBitFile(opener, cachePageSize, cacheCapacityPages, DecryptedPageCache.Eviction.LRU);
+    }
+
+    /**
+     * Opens the inner bitfield like above, with cacheEviction choosing which cached pages are dropped.
+     *
+     * @param cacheEviction order in which the cache drops its pages when full
+     **/
+    public ReadonlyBitFile openInnerReadonlyBitFile(Metadata opener, int cachePageSize, int cacheCapacityPages,
+						    DecryptedPageCache.Eviction cacheEviction)
+	throws IOException
+    {
+	PositionalCipherReader innerReader = null;
+	if(null != positionalReader) {
+	    try(GuardedByteArray guard = opener.getKey()) {
+		innerReader = positionalReader.decrypting(FileSalt.SIZE, new CipherTrail(this.filesalt, guard.bytes));
+	    }
+	}
 	return new ReadonlyBitFile(this.dataLength,
 				   () -> {
 				       try(GuardedByteArray guard = opener.getKey()) {
@@ -161,7 +256,8 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 				       //catch(IOException ioe) {
 				       //   throw new UncheckedIOException(ioe);
 				       //}
-	});
+				   },
+				   innerReader, cachePageSize, cacheCapacityPages, cacheEviction);
     }
 
     public FileSalt getFileSalt()
@@ -225,10 +321,16 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 		})
 	    .filter(e -> null != e)
 	    .findAny();
+	openInputStreams.clear();
+	if(null != pageCache) {
+	    pageCache.close();
+	}
+	if(null != positionalReader) {
+	    positionalReader.close();
+	}
 	if(oe.isPresent()) {
 	    throw new IOException(oe.get());
 	}
-	openInputStreams.clear();
     }
     
     /**
@@ -271,6 +373,17 @@ public class ReadonlyBitFile implements LargeBitfield, AutoCloseable, Supplier<I
 	    = relativeAddress >> 3;
 	    //= position >> 3;
 	byte bitMask = (byte)(1<<bitPosition);
+	if(null != positionalReader) {
+	    throwIfClosed();
+	    int res
+		= (null == pageCache)
+		? positionalReader.read(FileSalt.SIZE + bytePosition)
+		: pageCache.read(FileSalt.SIZE + bytePosition);
+	    if(res<0) {
+		throw new EOFException("can't find address "+address+" res:"+res);
+	    }
+	    return (0 != (res & bitMask));
+	}
 	InputStream in = threadLocalInputStream.get();
 	in.reset();
 	in.skip(bytePosition);
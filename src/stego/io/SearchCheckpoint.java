@@ -0,0 +1,194 @@
+package stego.io;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import stego.crypto.*;
+
+/**
+ * Encrypted state of a FileFinder search, so that a search that is cancelled or dies can be resumed later.
+ *
+ * For each nonce size searched, the state holds the start point of the search and its completed candidate ranges.
+ * The file is an EncryptedStateFile of the passcode, and the decrypted state starts with the salt of the bitfile,
+ * which tells whether the file belongs to this bitfile.
+ **/
+public class SearchCheckpoint
+    implements AutoCloseable
+{
+    public static final long SAVE_INTERVAL_MILLIS = 10000l;
+
+    private static class Entry
+    {
+	private final byte[] startPoint;
+	private final SearchProgress progress;
+	private Entry(byte[] startPoint, SearchProgress progress)
+	{
+	    this.startPoint = startPoint;
+	    this.progress = progress;
+	}
+    }
+
+    private final File file;
+    private final FileSalt bitfileSalt;
+    private final char[] passcode;
+    private final TreeMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+    private long lastSaveMillis = System.currentTimeMillis();
+
+    private SearchCheckpoint(File file, FileSalt bitfileSalt, char[] passcode)
+    {
+	this.file = file;
+	this.bitfileSalt = bitfileSalt;
+	this.passcode = passcode.clone();
+    }
+
+    /**
+     * Opens the checkpoint in file, or an empty checkpoint if file does not exist.
+     *
+     * @param file the state file
+     * @param bitfileSalt salt of the bitfile that is searched
+     * @param passcode the passcode that is searched for
+     * @return the checkpoint
+     * @throws IOException if file exists but is not a checkpoint of this passcode and bitfile, or reading it fails
+     **/
+    public static SearchCheckpoint open(File file, FileSalt bitfileSalt, char[] passcode)
+	throws IOException
+    {
+	SearchCheckpoint result = new SearchCheckpoint(file, bitfileSalt, passcode);
+	if(file.exists()) {
+	    try {
+		result.load();
+	    }
+	    catch(IOException | RuntimeException e) {
+		result.close();
+		throw e;
+	    }
+	}
+	return result;
+    }
+
+    private void load()
+	throws IOException
+    {
+	byte[] body = EncryptedStateFile.read(file, passcode);
+	try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+	    byte[] savedBitfileSalt = new byte[FileSalt.SIZE];
+	    in.readFully(savedBitfileSalt);
+	    if(!Arrays.equals(savedBitfileSalt, bitfileSalt.bytes)) {
+		throw new IOException("search state file "+file+" is not of this bitfile.");
+	    }
+	    int entryCount = in.readInt();
+	    for(int i = 0; i < entryCount; i++) {
+		int nonceSize = in.readInt();
+		byte[] startPoint = new byte[nonceSize];
+		in.readFully(startPoint);
+		SearchProgress progress = new SearchProgress();
+		int rangeCount = in.readInt();
+		for(int j = 0; j < rangeCount; j++) {
+		    long start = in.readLong();
+		    progress.complete(start, in.readLong());
+		}
+		entries.put(nonceSize, new Entry(startPoint, progress));
+	    }
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	}
+    }
+
+    /**
+     * Gives the start point of nonce size, drawing and recording a new one if the size has not been searched.
+     *
+     * @param nonceSize size of the nonce
+     * @param random source of a new start point
+     * @return the start point, owned by this checkpoint
+     **/
+    public synchronized byte[] getStartPoint(int nonceSize, SecureRandom random)
+    {
+	return entries.computeIfAbsent(nonceSize, size -> {
+		byte[] startPoint = new byte[size];
+		random.nextBytes(startPoint);
+		return new Entry(startPoint, new SearchProgress());
+	    }).startPoint;
+    }
+
+    /**
+     * @param nonceSize size of the nonce, whose start point must have been given by getStartPoint
+     * @return the completed candidates of nonce size
+     **/
+    public synchronized SearchProgress getProgress(int nonceSize)
+    {
+	return entries.get(nonceSize).progress;
+    }
+
+    /**
+     * Saves the state if SAVE_INTERVAL_MILLIS has passed since the last save.
+     *
+     * @throws IOException if writing the file fails
+     **/
+    public void saveIfDue()
+	throws IOException
+    {
+	synchronized(this) {
+	    if(System.currentTimeMillis() - lastSaveMillis < SAVE_INTERVAL_MILLIS) {
+		return;
+	    }
+	}
+	save();
+    }
+
+    /**
+     * Encrypts the state with a new salt and replaces the file with it.
+     *
+     * @throws IOException if writing the file fails
+     **/
+    public synchronized void save()
+	throws IOException
+    {
+	ByteArrayOutputStream plain = new ByteArrayOutputStream();
+	try(DataOutputStream out = new DataOutputStream(plain)) {
+	    out.write(bitfileSalt.bytes);
+	    out.writeInt(entries.size());
+	    for(Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+		out.writeInt(entry.getKey());
+		out.write(entry.getValue().startPoint);
+		long[][] ranges = entry.getValue().progress.getRanges();
+		out.writeInt(ranges.length);
+		for(long[] range : ranges) {
+		    out.writeLong(range[0]);
+		    out.writeLong(range[1]);
+		}
+	    }
+	}
+	byte[] body = plain.toByteArray();
+	try {
+	    EncryptedStateFile.write(file, passcode, body);
+	}
+	finally {
+	    Arrays.fill(body, (byte)0);
+	}
+	lastSaveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Removes the state file, when the search it belongs to has ended.
+     *
+     * @throws IOException if deleting the file fails
+     **/
+    public synchronized void delete()
+	throws IOException
+    {
+	Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Zeroes the passcode and start points held in memory. The file is not saved.
+     **/
+    public synchronized void close()
+    {
+	Arrays.fill(passcode, ' ');
+	for(Entry entry : entries.values()) {
+	    Arrays.fill(entry.startPoint, (byte)0);
+	}
+    }
+}
@@ -0,0 +1,354 @@
+package stego.io;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Off-heap memory of a ProtectedFileSlice, taken from a pool of direct buffers that are reused from slice to slice.
+ *
+ * The memory is held in direct ByteBuffers of up to CHUNK_SIZE bytes, so a slice can be larger than a Java array.
+ * Direct buffers are not moved or copied by the garbage collector, and reusing them means that slices need no
+ * new allocation, so no garbage collection is needed between slices. Buffers are zeroed when they are returned to the pool.
+ *
+ * Single bits are read and written atomically on the little endian 64-bit word holding them, so threads setting
+ * bits of the same word at the same time need no locks. Chunks are allocated in whole words for this.
+ **/
+class SliceBuffer
+    implements AutoCloseable
+{
+    static final int CHUNK_SHIFT = 30;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int COPY_SIZE = 1024*1024;
+    /**
+     * Maximum amount of idle buffers kept in the pool.
+     **/
+    static final int MAX_POOLED = 3;
+    private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final Deque<SliceBuffer> pool = new ArrayDeque<SliceBuffer>();
+
+    private final ByteBuffer[] chunks;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final long capacity;
+    private long size;
+    private boolean isPooled = false;
+
+    private SliceBuffer(long capacity)
+    {
+	this(capacity, CHUNK_SHIFT);
+    }
+
+    /**
+     * @param capacity size of the buffer in bytes
+     * @param chunkShift log2 of the chunk size, at least 3 so that chunks are whole words; smaller than CHUNK_SHIFT only in tests
+     **/
+    private SliceBuffer(long capacity, int chunkShift)
+    {
+	this.capacity = capacity;
+	this.chunkShift = chunkShift;
+	int chunkSize = 1 << chunkShift;
+	this.chunkMask = chunkSize - 1;
+	long wordCapacity = (capacity + Long.BYTES - 1) & -Long.BYTES;
+	this.chunks = new ByteBuffer[Math.toIntExact((wordCapacity + chunkSize - 1) >>> chunkShift)];
+	for(int i = 0; i < chunks.length; i++) {
+	    chunks[i] = ByteBuffer.allocateDirect((int)Math.min(chunkSize, wordCapacity - ((long)i << chunkShift)));
+	}
+    }
+
+    /**
+     * Takes a zeroed buffer of at least size bytes from the pool, or allocates a new one if there is none.
+     *
+     * @param size size of the slice in bytes
+     * @return the buffer, which is returned to the pool by close()
+     **/
+    static SliceBuffer acquire(long size)
+    {
+	SliceBuffer result = null;
+	synchronized(pool) {
+	    for(Iterator<SliceBuffer> i = pool.iterator(); i.hasNext(); ) {
+		SliceBuffer candidate = i.next();
+		if(candidate.capacity >= size) {
+		    i.remove();
+		    result = candidate;
+		    break;
+		}
+	    }
+	}
+	if(null == result) {
+	    result = new SliceBuffer(size);
+	}
+	result.size = size;
+	result.isPooled = false;
+	return result;
+    }
+
+    /**
+     * Drops the idle buffers of the pool, so that their memory is freed when they are garbage collected.
+     **/
+    static void clearPool()
+    {
+	synchronized(pool) {
+	    pool.clear();
+	}
+    }
+
+    long size()
+    {
+	return size;
+    }
+
+    byte get(long index)
+    {
+	return chunks[(int)(index >>> chunkShift)].get((int)(index & chunkMask));
+    }
+
+    void put(long index, byte value)
+    {
+	chunks[(int)(index >>> chunkShift)].put((int)(index & chunkMask), value);
+    }
+
+    /**
+     * Reads bit position%8 of byte position/8.
+     *
+     * @param position position of the bit in the buffer
+     * @return state of the bit
+     **/
+    boolean getBit(long position)
+    {
+	long wordIndex = (position >>> 6) << 3;
+	long word = (long)WORDS.getVolatile(chunks[(int)(wordIndex >>> chunkShift)], (int)(wordIndex & chunkMask));
+	return 0l != (word & (1l << (position & 0x3f)));
+    }
+
+    /**
+     * Sets or clears bit position%8 of byte position/8 atomically, without disturbing the other bits of its word.
+     *
+     * @param position position of the bit in the buffer
+     * @param state if true, sets the bit, otherwise clears it
+     **/
+    void setBit(long position, boolean state)
+    {
+	long wordIndex = (position >>> 6) << 3;
+	ByteBuffer chunk = chunks[(int)(wordIndex >>> chunkShift)];
+	int offset = (int)(wordIndex & chunkMask);
+	long mask = 1l << (position & 0x3f);
+	if(state) {
+	    WORDS.getAndBitwiseOr(chunk, offset, mask);
+	} else {
+	    WORDS.getAndBitwiseAnd(chunk, offset, ~mask);
+	}
+    }
+
+    /**
+     * Fills the buffer from in, reading until the buffer is full or in ends.
+     *
+     * @param in source of the bytes
+     * @return amount of bytes read
+     **/
+    long readFrom(InputStream in)
+	throws IOException
+    {
+	byte[] copy = new byte[(int)Math.min(COPY_SIZE, Math.max(1l, size))];
+	long done = 0l;
+	try {
+	    while(done < size) {
+		int result = in.read(copy, 0, (int)Math.min(copy.length, size - done));
+		if(result < 0) {
+		    break;
+		}
+		put(done, copy, 0, result);
+		done += result;
+	    }
+	    return done;
+	}
+	finally {
+	    Arrays.fill(copy, (byte)0);
+	}
+    }
+
+    /**
+     * Fills the buffer with bytes from random.
+     **/
+    void fillRandom(SecureRandom random)
+    {
+	byte[] copy = new byte[(int)Math.min(COPY_SIZE, Math.max(1l, size))];
+	try {
+	    for(long done = 0l; done < size; ) {
+		int amount = (int)Math.min(copy.length, size - done);
+		random.nextBytes(copy);
+		put(done, copy, 0, amount);
+		done += amount;
+	    }
+	}
+	finally {
+	    Arrays.fill(copy, (byte)0);
+	}
+    }
+
+    /**
+     * Writes the whole buffer into out.
+     **/
+    void writeTo(OutputStream out)
+	throws IOException
+    {
+	byte[] copy = new byte[(int)Math.min(COPY_SIZE, Math.max(1l, size))];
+	try {
+	    for(long done = 0l; done < size; ) {
+		int amount = (int)Math.min(copy.length, size - done);
+		get(done, copy, 0, amount);
+		out.write(copy, 0, amount);
+		done += amount;
+	    }
+	}
+	finally {
+	    Arrays.fill(copy, (byte)0);
+	}
+    }
+
+    private void put(long index, byte[] source, int offset, int len)
+    {
+	while(len > 0) {
+	    ByteBuffer chunk = chunks[(int)(index >>> chunkShift)].duplicate();
+	    int position = (int)(index & chunkMask);
+	    int amount = Math.min(len, chunk.capacity() - position);
+	    chunk.position(position);
+	    chunk.put(source, offset, amount);
+	    index += amount;
+	    offset += amount;
+	    len -= amount;
+	}
+    }
+
+    private void get(long index, byte[] target, int offset, int len)
+    {
+	while(len > 0) {
+	    ByteBuffer chunk = chunks[(int)(index >>> chunkShift)].duplicate();
+	    int position = (int)(index & chunkMask);
+	    int amount = Math.min(len, chunk.capacity() - position);
+	    chunk.position(position);
+	    chunk.get(target, offset, amount);
+	    index += amount;
+	    offset += amount;
+	    len -= amount;
+	}
+    }
+
+    /**
+     * Zeroes the used part of the buffer and returns it to the pool, or drops it if the pool is full.
+     **/
+    public void close()
+    {
+	if(isPooled) {
+	    return;
+	}
+	byte[] zeros = new byte[(int)Math.min(COPY_SIZE, Math.max(1l, size))];
+	for(long done = 0l; done < size; ) {
+	    int amount = (int)Math.min(zeros.length, size - done);
+	    put(done, zeros, 0, amount);
+	    done += amount;
+	}
+	isPooled = true;
+	synchronized(pool) {
+	    if(pool.size() < MAX_POOLED) {
+		pool.push(this);
+	    }
+	}
+    }
+
+    /**
+     * Testing methods
+     **/
+
+    /**
+     * Puts random bytes with put and reads every bit of them with getBit, and sets random bits with setBit
+     * and reads every byte of them with get, in a buffer of small chunks so that words and bytes cross chunk boundaries.
+     *
+     * @param size size of the buffer in bytes
+     * @param chunkShift log2 of the chunk size
+     * @returns amount of bits or bytes read differently than expected
+     **/
+    private static int compareBitsToBytes(int size, int chunkShift)
+    {
+	Random random = new Random(size);
+	SliceBuffer buffer = new SliceBuffer(size, chunkShift);
+	buffer.size = size;
+	int mismatches = 0;
+	byte[] expected = new byte[size];
+	random.nextBytes(expected);
+	for(int i = 0; i < size; i++) {
+	    buffer.put(i, expected[i]);
+	}
+	for(long position = 0; position < size * 8l; position++) {
+	    if(buffer.getBit(position) != (0 != (expected[(int)(position >> 3)] & (1 << (position & 0x7))))) {
+		mismatches++;
+	    }
+	}
+	// the bits on both sides of every chunk boundary, and random ones
+	List<Long> positions = new ArrayList<Long>();
+	for(long boundary = 1l << chunkShift; boundary < size; boundary += 1l << chunkShift) {
+	    for(long position = (boundary - 1) * 8; position < (boundary + 1) * 8; position++) {
+		positions.add(position);
+	    }
+	}
+	for(int i = 0; i < size; i++) {
+	    positions.add((long)random.nextInt(size * 8));
+	}
+	for(long position : positions) {
+	    boolean state = random.nextBoolean();
+	    buffer.setBit(position, state);
+	    byte mask = (byte)(1 << (position & 0x7));
+	    expected[(int)(position >> 3)] = (byte)(state ? (expected[(int)(position >> 3)] | mask) : (expected[(int)(position >> 3)] & ~mask));
+	}
+	for(int i = 0; i < size; i++) {
+	    if(buffer.get(i) != expected[i]) {
+		mismatches++;
+	    }
+	}
+	try {
+	    ByteArrayOutputStream written = new ByteArrayOutputStream();
+	    buffer.writeTo(written);
+	    if(!Arrays.equals(written.toByteArray(), expected)) {
+		mismatches++;
+	    }
+	    buffer.readFrom(new ByteArrayInputStream(new byte[size]));
+	    for(long position = 0; position < size * 8l; position++) {
+		if(buffer.getBit(position)) {
+		    mismatches++;
+		}
+	    }
+	}
+	catch(IOException ioe) {
+	    ioe.printStackTrace();
+	    mismatches++;
+	}
+	System.out.println(""+size+" bytes in chunks of "+(1 << chunkShift)+": "+mismatches+" mismatches.");
+	return mismatches;
+    }
+
+    /**
+     * main method for testing.
+     *
+     * runs tests and reports their success rate.
+     **/
+    public static void main(String[] args)
+    {
+	int successes = 0;
+	int trials = 0;
+
+	trials++;
+	if(0 == compareBitsToBytes(1000, CHUNK_SHIFT)) successes++;
+
+	trials++;
+	if(0 == compareBitsToBytes(200, 6)) successes++;
+
+	trials++;
+	if(0 == compareBitsToBytes(197, 3)) successes++;
+
+	System.out.println("tested "+trials+" trials, "+successes+"/"+trials+" succeeded.");
+    }
+}
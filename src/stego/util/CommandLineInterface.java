@@ -6,6 +6,7 @@ import java.util.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import stego.io.*;
+import stego.crypto.KeyMaterialCache;
 
 /**
  * Command line interface for stegodata.
@@ -47,6 +48,10 @@ public class CommandLineInterface
 	 * changes current nonce size
 	 **/
 	NONCE("-n"),
+	/**
+	 * changes largest nonce size searched
+	 **/
+	MAXNONCE("-m"),
 	/**
 	 * changes new password for output bitfile
 	 **/
@@ -54,7 +59,23 @@ public class CommandLineInterface
 	/**
 	 * specifies input bitfile
 	 **/
-	INPUTFILE("-i");
+	INPUTFILE("-i"),
+	/**
+	 * specifies search state file for resuming reads
+	 **/
+	CHECKPOINT("-s"),
+	/**
+	 * specifies keyring file of found metadata
+	 **/
+	KEYRING("-k"),
+	/**
+	 * writes stegodata into the bitfile in place
+	 **/
+	INPLACE("-u"),
+	/**
+	 * changes the backend the bitfile is written in place with
+	 **/
+	BACKEND("-b");
 
 	/**
 	 * Contains the command string of this command.
@@ -142,7 +163,12 @@ public class CommandLineInterface
 	System.err.print(" ("+COMMAND.CREATE.text+" <size>|"+COMMAND.INPUTFILE.text+" <inputfile>)]");
 	System.err.print(" ["+COMMAND.READ.text+" [-]<filename>]");
 	System.err.print(" ["+COMMAND.NONCE.text+" <size>]");
+	System.err.print(" ["+COMMAND.MAXNONCE.text+" <size>]");
 	System.err.print(" ["+COMMAND.NEWPASSWORD.text+"]");
+	System.err.print(" ["+COMMAND.CHECKPOINT.text+" <statefile>]");
+	System.err.print(" ["+COMMAND.KEYRING.text+" <keyringfile>]");
+	System.err.print(" ["+COMMAND.INPLACE.text+"]");
+	System.err.print(" ["+COMMAND.BACKEND.text+" <backend>]");
 	System.err.println();
 	System.err.println(); 
 	System.err.println(""+COMMAND.CREATE.text+" <size>");
@@ -150,12 +176,25 @@ public class CommandLineInterface
 	System.err.println("  "+Arrays.asList(SI.values()).stream().map(e->""+e.name()+":"+e.getFactor()).collect(Collectors.joining(" "))+" can be used as multipliers");
 	System.err.println(""+COMMAND.READ.text+" [-]<targetfilename>");
 	System.err.println("  reads a file from passcode <filename> to file of same name or to stdout if given flag - before the filename");
+	System.err.println("  several files read without "+COMMAND.CHECKPOINT.text+" are searched together and written as soon as each is found");
+	System.err.println("  if <bitfilename> is a directory, the files are searched in all bitfiles in it, which open with the same password, other files are skipped");
 	System.err.println(""+COMMAND.WRITE.text+" <filename>");
 	System.err.println("  writes a file to passcode <filename> from file of same name or from stdin if given flag - before the filename");
 	System.err.println(""+COMMAND.NONCE.text+" <size>");
 	System.err.println("  changes current minimum nonce size and nonce size guess to <size> bytes");
+	System.err.println(""+COMMAND.MAXNONCE.text+" <size>");
+	System.err.println("  changes the largest nonce size searched in a directory of bitfiles to <size> bytes, by default "+MAX_NONCE_MARGIN+" over the minimum nonce size");
 	System.err.println(""+COMMAND.NEWPASSWORD.text+"");
 	System.err.println("  changes new password for the output bitfile");
+	System.err.println(""+COMMAND.CHECKPOINT.text+" <statefile>");
+	System.err.println("  keeps the progress of read searches encrypted in <statefile> and resumes from it, the file is removed when the search succeeds");
+	System.err.println(""+COMMAND.KEYRING.text+" <keyringfile>");
+	System.err.println("  looks up found metadata from <keyringfile> encrypted with a keyring passphrase to skip nonce searches, and records new ones into it");
+	System.err.println(""+COMMAND.INPLACE.text+"");
+	System.err.println("  writes the files into <bitfilename> in place with its current password and key, changing only the blocks the files land in");
+	System.err.println("  copies of the bitfile from before and after show which blocks changed");
+	System.err.println(""+COMMAND.BACKEND.text+" <backend>");
+	System.err.println("  writes in place with <backend>, one of "+Arrays.asList(BitFile.Backend.values()).stream().map(e->e.name().toLowerCase()).collect(Collectors.joining(" "))+", by default channel");
 	System.err.println();
     }
 
@@ -167,10 +206,10 @@ public class CommandLineInterface
     public static void main(String[] cliarg)
     {
 	boolean success = false;
+	CommandLineInterface state = new CommandLineInterface();
 	try {
 	    ArrayList<String> args = new ArrayList<String>(Arrays.asList(cliarg));
 	    if(args.size()>0) {
-		CommandLineInterface state = new CommandLineInterface();
 		success = state.processCommands(args.remove(0),mapCommands(args));
 	    }
 	}
@@ -182,6 +221,12 @@ public class CommandLineInterface
 	    System.err.println("An IllegalArgumentException occurred:");
 	    iae.printStackTrace();
 	}
+	finally {
+	    if(null != state.keyring) {
+		state.keyring.close();
+	    }
+	    KeyMaterialCache.getDefault().close();
+	}
 	if(!success) {
 	    printUsage();
 	}
@@ -194,8 +239,15 @@ public class CommandLineInterface
     private char[] outPasscode = null;
     private char[] inPasscode = null;
     private int nonceSize = 1; // default nonce size is 1 with normal random
+    /**
+     * Default amount of bytes the largest searched nonce is over nonceSize. Nonces of writers are longer than their minimum
+     * by a byte for every 4 true bits in a row from random, so 1/16 are a byte over it and 1/4096 more than 2 bytes.
+     **/
+    private static final int MAX_NONCE_MARGIN = 2;
+    private int maxNonceSize = -1; // default is nonceSize + MAX_NONCE_MARGIN
     private long outFilesize = -1l;
     private ReadonlyBitFile inbitfile = null;
+    private Keyring keyring = null;
     private CommandLineInterface()
     {
     }
@@ -215,9 +267,70 @@ public class CommandLineInterface
 	    nonceSize = Integer.valueOf(nonceArguments.remove(0));
 	    commands.remove(COMMAND.NONCE);
 	}
+	if(commands.containsKey(COMMAND.MAXNONCE)) {
+	    List<String> maxNonceArguments = commands.get(COMMAND.MAXNONCE);
+	    if(maxNonceArguments.size() != 1) {
+		throw new IllegalArgumentException("wrong amount of "+COMMAND.MAXNONCE.text+" parameters.");
+	    }
+	    maxNonceSize = Integer.valueOf(maxNonceArguments.remove(0));
+	    commands.remove(COMMAND.MAXNONCE);
+	}
+	if(maxNonceSize < 0) {
+	    maxNonceSize = nonceSize + MAX_NONCE_MARGIN;
+	} else if(maxNonceSize < nonceSize) {
+	    throw new IllegalArgumentException(""+COMMAND.MAXNONCE.text+" "+maxNonceSize+" is below "+COMMAND.NONCE.text+" "+nonceSize+".");
+	}
+	File checkpointFile = null;
+	if(commands.containsKey(COMMAND.CHECKPOINT)) {
+	    List<String> checkpointArguments = commands.get(COMMAND.CHECKPOINT);
+	    if(checkpointArguments.size() != 1) {
+		throw new IllegalArgumentException("wrong amount of "+COMMAND.CHECKPOINT.text+" parameters.");
+	    }
+	    checkpointFile = new File(checkpointArguments.remove(0));
+	    commands.remove(COMMAND.CHECKPOINT);
+	}
+	if(commands.containsKey(COMMAND.KEYRING)) {
+	    List<String> keyringArguments = commands.get(COMMAND.KEYRING);
+	    if(keyringArguments.size() != 1) {
+		throw new IllegalArgumentException("wrong amount of "+COMMAND.KEYRING.text+" parameters.");
+	    }
+	    char[] keyringPassphrase = queryPassword("keyring passphrase:",1);
+	    try {
+		keyring = Keyring.open(new File(keyringArguments.remove(0)), keyringPassphrase);
+	    }
+	    finally {
+		Arrays.fill(keyringPassphrase, ' ');
+	    }
+	    commands.remove(COMMAND.KEYRING);
+	}
+	boolean inPlace = commands.containsKey(COMMAND.INPLACE);
+	BitFile.Backend backend = BitFile.Backend.CHANNEL;
+	if(commands.containsKey(COMMAND.BACKEND)) {
+	    List<String> backendArguments = commands.get(COMMAND.BACKEND);
+	    if(backendArguments.size() != 1) {
+		throw new IllegalArgumentException("wrong amount of "+COMMAND.BACKEND.text+" parameters.");
+	    }
+	    if(!inPlace) {
+		throw new IllegalArgumentException(""+COMMAND.BACKEND.text+" used without "+COMMAND.INPLACE.text+".");
+	    }
+	    backend = BitFile.Backend.valueOf(backendArguments.remove(0).toUpperCase());
+	    commands.remove(COMMAND.BACKEND);
+	}
+	if(inPlace) {
+	    if(!commands.containsKey(COMMAND.WRITE)) {
+		throw new IllegalArgumentException(""+COMMAND.INPLACE.text+" used without "+COMMAND.WRITE.text+".");
+	    }
+	    if(commands.containsKey(COMMAND.CREATE) || commands.containsKey(COMMAND.INPUTFILE) || commands.containsKey(COMMAND.NEWPASSWORD)) {
+		throw new IllegalArgumentException(""+COMMAND.INPLACE.text+" used with "+COMMAND.CREATE.text+", "+COMMAND.INPUTFILE.text+" or "+COMMAND.NEWPASSWORD.text+".");
+	    }
+	    commands.remove(COMMAND.INPLACE);
+	}
 	if(commands.containsKey(COMMAND.WRITE)) {
 	    outFile = new File(bitfileName);
-	    if(commands.containsKey(COMMAND.CREATE)) {
+	    if(inPlace) {
+		inFile = outFile;
+		inPasscode = queryPassword("bitfile password:",1);
+	    } else if(commands.containsKey(COMMAND.CREATE)) {
 		if(commands.containsKey(COMMAND.INPUTFILE)) {
 		    throw new IllegalArgumentException("both "+COMMAND.CREATE.text+" and "+COMMAND.INPUTFILE.text+" used.");
 		}
@@ -267,8 +380,18 @@ public class CommandLineInterface
 	    if(null == inFile) {
 		throw new IllegalArgumentException("can't read without existing bitfile.");
 	    }
-	    try(ReadonlyBitFile openedInBitfile = ReadonlyBitFile.read(inFile, inPasscode, new SecureRandom())) {
+	    if(inFile.isDirectory()) {
+		readFromDirectory(inFile, commands.get(COMMAND.READ));
+		commands.remove(COMMAND.READ);
+	    }
+	}
+	if(commands.containsKey(COMMAND.READ)) {
+	    try(ReadonlyBitFile openedInBitfile = ReadonlyBitFile.read(inFile, inPasscode, new SecureRandom(), keyring)) {
 		List<String> readFiles = commands.get(COMMAND.READ);
+		if((null == checkpointFile) && (readFiles.size() > 1)) {
+		    readAll(openedInBitfile, readFiles);
+		    readFiles = Arrays.asList();
+		}
 		for(String readName : readFiles) {
 		    OutputStream out = null;
 		    if(readName.startsWith(PIPENAME)) {
@@ -281,9 +404,10 @@ public class CommandLineInterface
 			}
 			out = new FileOutputStream(readFile);
 		    }
-		    InputStream in
-			= new FileFinder(openedInBitfile)
-			.find(readName.toCharArray(), nonceSize);
+		    FileFinder finder = new FileFinder(openedInBitfile);
+		    finder.setCheckpointFile(checkpointFile);
+		    finder.setKeyring(keyring);
+		    InputStream in = finder.find(readName.toCharArray(), nonceSize);
 		    pipeInputToOutput(in, out);
 		}
 	    }
@@ -291,25 +415,43 @@ public class CommandLineInterface
 	}
 	if(commands.containsKey(COMMAND.WRITE)) {
 	    List<String> writeNames = commands.get(COMMAND.WRITE);
+	    if(writeNames.stream().filter(name -> name.startsWith(PIPENAME)).count() > 1) {
+		throw new IllegalArgumentException("more than one file to write from stdin.");
+	    }
 	    for(String name : writeNames) {
 		File f = new File(name);
-		if(!f.exists()) {
+		if(!name.startsWith(PIPENAME) && !f.exists()) {
 		    throw new IllegalArgumentException("file "+name+" not found.");
 		}
 	    }
 	    List<FileHider> fileHiders
 		= writeNames.stream()
-		.map(s -> new FileHider(new File(s), nonceSize, new SecureRandom()))
+		.map(s -> s.startsWith(PIPENAME)
+		     ? new FileHider(System.in, s.substring(PIPENAME.length()), nonceSize, new SecureRandom())
+		     : new FileHider(new File(s), nonceSize, new SecureRandom()))
 		.collect(Collectors.toList());
-	    if(null != inFile) {
-		try(ReadonlyBitFile inBitfile = ReadonlyBitFile.read(inFile, inPasscode, new SecureRandom())) {
-		    ProtectedFileSlice
-			.write(inBitfile,
-			       new FileOutputStream(outFile), outPasscode, nonceSize, new SecureRandom(),
-			       fileHiders).close();
+	    try {
+		if(inPlace) {
+		    InPlaceBitFile.update(outFile, inPasscode, new SecureRandom(), keyring, backend, fileHiders);
+		} else if(null != inFile) {
+		    try(ReadonlyBitFile inBitfile = ReadonlyBitFile.read(inFile, inPasscode, new SecureRandom(), keyring)) {
+			ProtectedFileSlice
+			    .write(inBitfile,
+				   new FileOutputStream(outFile), outPasscode, nonceSize, new SecureRandom(),
+				   fileHiders).close();
+			if(null != keyring) {
+			    for(FileHider hider : fileHiders) {
+				hider.record(keyring, inBitfile.getFileSalt());
+			    }
+			    keyring.save();
+			}
+		    }
+		} else {
+		    ProtectedFileSlice.createAndWrite(outFilesize, new FileOutputStream(outFile), outPasscode, nonceSize, new SecureRandom(), fileHiders).close();
 		}
-	    } else {
-		ProtectedFileSlice.createAndWrite(outFilesize, new FileOutputStream(outFile), outPasscode, nonceSize, new SecureRandom(), fileHiders).close();
+	    }
+	    finally {
+		closeAll(fileHiders);
 	    }
 	    commands.remove(COMMAND.WRITE);
 	    if(commands.containsKey(COMMAND.CREATE)) {
@@ -380,6 +522,10 @@ public class CommandLineInterface
 		result.put(COMMAND.NEWPASSWORD, Arrays.asList("password"));
 		break;
 	    }
+	    case INPLACE: {
+		result.put(COMMAND.INPLACE, Arrays.asList());
+		break;
+	    }
 	    default: {
 		result
 		    .computeIfAbsent(command,
@@ -395,6 +541,158 @@ public class CommandLineInterface
 	
 	return result;	
     }
+    /**
+     * Reads several files from bitfile with one batch search, writing each out as soon as it is found.
+     * Files written to stdout come out in the order of readNames: the metadata of a piped file found before
+     * the piped files named ahead of it is kept until they are written, and only then is its file read.
+     *
+     * @param bitfile the opened inner bitfile
+     * @param readNames names of the files, with PIPENAME before the names written to stdout
+     **/
+    private void readAll(ReadonlyBitFile bitfile, List<String> readNames)
+	throws IOException
+    {
+	List<char[]> passcodes = new ArrayList<char[]>();
+	List<File> readFiles = new ArrayList<File>();
+	for(String readName : readNames) {
+	    if(readName.startsWith(PIPENAME)) {
+		passcodes.add(readName.substring(PIPENAME.length()).toCharArray());
+		readFiles.add(null);
+	    } else {
+		File readFile = new File(readName);
+		if(readFile.exists()) {
+		    throw new IllegalArgumentException(""+readName+" already exists.");
+		}
+		passcodes.add(readName.toCharArray());
+		readFiles.add(readFile);
+	    }
+	}
+	List<Integer> pipedOrder = new ArrayList<Integer>();
+	for(int i = 0; i < readFiles.size(); i++) {
+	    if(null == readFiles.get(i)) {
+		pipedOrder.add(i);
+	    }
+	}
+	Metadata[] waitingPiped = new Metadata[readFiles.size()];
+	int[] nextPiped = { 0 };
+	FileFinder finder = new FileFinder(bitfile);
+	finder.setKeyring(keyring);
+	try {
+	    finder.findAll(passcodes, nonceSize, (index, metadata) -> {
+		    if(null != readFiles.get(index)) {
+			writeOut(finder, metadata, readFiles.get(index));
+			return;
+		    }
+		    waitingPiped[index] = metadata;
+		    while((nextPiped[0] < pipedOrder.size()) && (null != waitingPiped[pipedOrder.get(nextPiped[0])])) {
+			int next = pipedOrder.get(nextPiped[0]++);
+			Metadata opener = waitingPiped[next];
+			waitingPiped[next] = null;
+			writeOut(finder, opener, null);
+		    }
+		});
+	    // piped files found after one that was not found
+	    for(int index : pipedOrder) {
+		if(null != waitingPiped[index]) {
+		    Metadata opener = waitingPiped[index];
+		    waitingPiped[index] = null;
+		    writeOut(finder, opener, null);
+		}
+	    }
+	}
+	finally {
+	    for(Metadata unwritten : waitingPiped) {
+		if(null != unwritten) {
+		    unwritten.close();
+		}
+	    }
+	}
+    }
+    /**
+     * Writes the file of metadata into target or to stdout if target is null, and closes metadata.
+     **/
+    private void writeOut(FileFinder finder, Metadata metadata, File target)
+	throws IOException
+    {
+	try(Metadata opener = metadata;
+	    InputStream in = finder.open(opener)) {
+	    if(null == target) {
+		pipeInputToOutput(in, System.out);
+	    } else {
+		try(OutputStream out = new FileOutputStream(target)) {
+		    pipeInputToOutput(in, out);
+		}
+	    }
+	}
+    }
+    /**
+     * Reads files from whichever bitfile in directory holds them, searching all bitfiles at once.
+     * Files that do not open with the infile password up to the maximum nonce size are skipped.
+     *
+     * @param directory directory of the bitfiles
+     * @param readNames names of the files, with PIPENAME before the names written to stdout
+     **/
+    private void readFromDirectory(File directory, List<String> readNames)
+	throws IOException
+    {
+	File[] listed = directory.listFiles(File::isFile);
+	if((null == listed) || (0 == listed.length)) {
+	    throw new IllegalArgumentException("no bitfiles in "+directory+".");
+	}
+	Arrays.sort(listed);
+	try(MultiFileFinder finder = new MultiFileFinder(Arrays.asList(listed), inPasscode, maxNonceSize,
+							 Runtime.getRuntime().availableProcessors(), keyring)) {
+	    for(Map.Entry<File, String> skipped : finder.getSkipped().entrySet()) {
+		System.err.println("skipped "+skipped.getKey()+", "+skipped.getValue()+".");
+	    }
+	    for(String readName : readNames) {
+		boolean isPiped = readName.startsWith(PIPENAME);
+		if(isPiped) {
+		    readName = readName.substring(PIPENAME.length());
+		} else if(new File(readName).exists()) {
+		    throw new IllegalArgumentException(""+readName+" already exists.");
+		}
+		MultiFileFinder.Hit hit = finder.find(readName.toCharArray(), nonceSize);
+		if(null == hit) {
+		    System.err.println(""+readName+" not found in "+directory+" up to nonce size "+maxNonceSize+".");
+		    continue;
+		}
+		System.err.println(""+readName+" found in "+hit.file);
+		try(InputStream in = hit.stream) {
+		    if(isPiped) {
+			pipeInputToOutput(in, System.out);
+		    } else {
+			try(OutputStream out = new FileOutputStream(new File(readName))) {
+			    pipeInputToOutput(in, out);
+			}
+		    }
+		}
+	    }
+	}
+    }
+    /**
+     * Closes every hider, so that the plaintext they hold is cleared and their spill files are removed,
+     * even if closing one of them fails.
+     **/
+    private static void closeAll(List<FileHider> fileHiders)
+    {
+	RuntimeException failure = null;
+	for(FileHider hider : fileHiders) {
+	    try {
+		hider.close();
+	    }
+	    catch(RuntimeException re) {
+		if(null == failure) {
+		    failure = re;
+		} else {
+		    failure.addSuppressed(re);
+		}
+	    }
+	}
+	if(null != failure) {
+	    throw failure;
+	}
+    }
     private void pipeInputToOutput(InputStream in, OutputStream out)
 	throws IOException
     {
@@ -406,6 +704,22 @@ public class CommandLineInterface
 	}
 	Arrays.fill(buf, (byte)0);
     }
+    private static long lastStatusMillis = 0l;
+    /**
+     * Shows a status line on the console, at most once a second so that frequent callers do not flood it.
+     *
+     * @param status the status to show
+     **/
+    public static synchronized void showProgress(String status)
+    {
+	Console con = System.console();
+	long now = System.currentTimeMillis();
+	if((null != con) && (now - lastStatusMillis >= 1000l)) {
+	    lastStatusMillis = now;
+	    con.writer().print("\r"+status);
+	    con.writer().flush();
+	}
+    }
     public static void showProgress()
     {
 	Console con = System.console();